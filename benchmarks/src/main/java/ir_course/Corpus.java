@@ -0,0 +1,102 @@
+package ir_course;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+
+/**
+ * The document collection every benchmark runs on: the
+ * collection file, or a copy of it with all items repeated
+ * scale times, and its parsed documents.
+ *
+ * Usage, from the project root:
+ *
+ *   mvn package
+ *   java -jar benchmarks/target/benchmarks.jar [JMH options]
+ *
+ * Another collection is set with -p corpus=path, and other
+ * scales with -p scale=1,8.
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+
+	// the queries of Task
+	static final String[] QUERIES = {
+		"translingual information retrieval",
+		"polyglot information searching",
+		"cross-language information retrieval" };
+
+	@Param("eclipse/src/corpus_part2.xml")
+	public String corpus;
+
+	@Param({"1", "4"})
+	public int scale;
+
+	String uri;
+	List<DocumentInCollection> dics;
+	private Path copy;
+
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		if (scale == 1) {
+			uri = corpus;
+		} else {
+			copy = scaleCollection(corpus, scale);
+			uri = copy.toString();
+		}
+		dics = CollectionSource.parse(uri, null).getDocuments();
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		IndexRegistry.clear();
+		InvertedIndex.clear();
+		ShardedIndex.clear();
+		if (copy != null) {
+			Files.delete(copy);
+		}
+	}
+
+
+
+	/**
+	 * Write a copy of the collection with all items repeated
+	 * scale times.
+	 *
+	 * Return path of the copy.
+	 */
+	static Path scaleCollection(String uri, int scale) throws IOException {
+		String xml = new String(Files.readAllBytes(new File(uri).toPath()), StandardCharsets.UTF_8);
+		int start = xml.indexOf("<item>");
+		int end = xml.lastIndexOf("</item>") + "</item>".length();
+		String items = xml.substring(start, end);
+
+		StringBuilder scaled = new StringBuilder(xml.length() * scale);
+		scaled.append(xml, 0, start);
+		for (int i = 0; i < scale; i++) {
+			scaled.append(items).append("\n");
+		}
+		scaled.append(xml, end, xml.length());
+
+		Path path = Files.createTempFile("corpus-x" + scale + "-", ".xml");
+		Files.write(path, scaled.toString().getBytes(StandardCharsets.UTF_8));
+		return path;
+	}
+
+}
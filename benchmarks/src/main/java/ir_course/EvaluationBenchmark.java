@@ -0,0 +1,64 @@
+package ir_course;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+
+/**
+ * Time to compute the interpolated precision curve of
+ * a search result, over the results of all queries of
+ * Task with all its engines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EvaluationBenchmark {
+
+	// engine codes of Task
+	static final String[] ENGINES = {"111", "110", "101", "211", "210", "201"};
+
+	private SearchResult[] results;
+
+
+
+	@Setup(Level.Trial)
+	public void setUp(Corpus corpus) throws Exception {
+		results = new SearchResult[ENGINES.length * Corpus.QUERIES.length];
+		for (int e = 0; e < ENGINES.length; e++) {
+			Engine engine = new Engine(ENGINES[e]);
+			engine.setReuseIndex(true);
+			for (int q = 0; q < Corpus.QUERIES.length; q++) {
+				results[e * Corpus.QUERIES.length + q] = engine.doSearch(Corpus.QUERIES[q], corpus.dics);
+			}
+		}
+	}
+
+
+
+	// 6 engines, 3 queries
+	@Benchmark
+	@OperationsPerInvocation(18)
+	public void computeInterpolatedPrecisions(Blackhole blackhole) {
+		for (SearchResult sr : results) {
+			blackhole.consume(Task.computeInterpolatedPrecisions(sr));
+		}
+	}
+
+}
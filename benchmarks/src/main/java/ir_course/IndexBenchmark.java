@@ -0,0 +1,56 @@
+package ir_course;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+
+/**
+ * Time to index the parsed collection, for every analyzer
+ * configuration, into an in-memory Lucene directory and
+ * into the native InvertedIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+	// analyzer configurations of Task; ranking does not
+	// affect indexing
+	@Param({"111", "110", "101"})
+	public String code;
+
+
+
+	@Benchmark
+	public long lucene(Corpus corpus) throws IOException {
+		Engine engine = new Engine(code);
+		try (Directory directory = engine.getDirectory(
+				engine.getConfig(engine.getAnalyzer()), corpus.dics)) {
+			return directory.listAll().length;
+		}
+	}
+
+
+
+	@Benchmark
+	public InvertedIndex nativeIndex(Corpus corpus) throws IOException {
+		return new InvertedIndex(corpus.dics, new Engine(code).getAnalyzer());
+	}
+
+}
@@ -0,0 +1,106 @@
+package ir_course;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+
+/**
+ * Throughput of reading all documents of the collection,
+ * either parsed from its XML, or from a binary snapshot
+ * written before the measurement: collections per second,
+ * and MB of the collection file per second as the
+ * megabytes counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({"xml", "snapshot"})
+	public String format;
+
+	private Path snapshot;
+	private long bytes;
+
+
+
+	/**
+	 * Megabytes of the collection file read in an
+	 * iteration, reported by JMH per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Throughput {
+		long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+
+		public double megabytes() {
+			return bytes / (1024.0 * 1024.0);
+		}
+	}
+
+
+
+	@Setup(Level.Trial)
+	public void setUp(Corpus corpus) throws IOException {
+		bytes = Files.size(Paths.get(corpus.uri));
+		if (format.equals("snapshot")) {
+			snapshot = Files.createTempFile("corpus-", ".snapshot");
+			Files.delete(snapshot);
+			if (!new DocumentCollectionParser().parse(corpus.uri, snapshot)) {
+				throw new IOException("could not parse " + corpus.uri);
+			}
+		}
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (snapshot != null) {
+			Files.delete(snapshot);
+		}
+	}
+
+
+
+	@Benchmark
+	public List<DocumentInCollection> parse(Corpus corpus, Throughput throughput) {
+		throughput.bytes += bytes;
+		DocumentCollectionParser parser = new DocumentCollectionParser();
+		if (snapshot != null) {
+			parser.parse(corpus.uri, snapshot);
+		} else {
+			parser.parse(corpus.uri);
+		}
+		return parser.getDocuments();
+	}
+
+}
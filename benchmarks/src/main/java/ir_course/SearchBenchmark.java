@@ -0,0 +1,106 @@
+package ir_course;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+
+/**
+ * Latency of a query of Task, for every engine code and
+ * search backend, at evaluation depth and at the depth of
+ * interactive searches. Indexes are built before the
+ * measurement, and results are not cached, so every
+ * search is scored.
+ *
+ * Backends: a shared Lucene index, the same ranked by
+ * score alone, the native InvertedIndex, hash-partitioned
+ * shards, and an index of one segment per thread searched
+ * by all threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+	// shards of sharded searches
+	static final int SHARDS = 4;
+
+	// threads and index segments of sliced searches
+	static final int SEARCH_THREADS = 4;
+
+	@Param({"111", "110", "101", "211", "210", "201"})
+	public String code;
+
+	@Param({"lucene", "scoreOnly", "native", "shards", "slices"})
+	public String backend;
+
+	@Param({"1000", "10"})
+	public int depth;
+
+	private Engine engine;
+	private ExecutorService searchExecutor;
+
+
+
+	@Setup(Level.Trial)
+	public void setUp(Corpus corpus) throws Exception {
+		Engine.setResultCache(null);
+		engine = new Engine(code);
+		engine.setReuseIndex(true);
+		engine.setResultDepth(depth);
+		if (backend.equals("scoreOnly")) {
+			engine.setScoreOnly(true);
+		} else if (backend.equals("native")) {
+			engine.setNativeIndex(true);
+		} else if (backend.equals("shards")) {
+			engine.setShards(SHARDS);
+		} else if (backend.equals("slices")) {
+			searchExecutor = Executors.newFixedThreadPool(SEARCH_THREADS);
+			engine.setSegments(SEARCH_THREADS);
+			engine.setSearchExecutor(searchExecutor, 0);
+		}
+		// build the index
+		engine.doSearch(Corpus.QUERIES[0], corpus.dics);
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (searchExecutor != null) {
+			searchExecutor.shutdown();
+		}
+	}
+
+
+
+	// the 3 queries of Task
+	@Benchmark
+	@OperationsPerInvocation(3)
+	public void search(Corpus corpus, Blackhole blackhole) throws Exception {
+		for (String query : Corpus.QUERIES) {
+			blackhole.consume(engine.doSearch(query, corpus.dics));
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package ir_course;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+
+/**
+ * Time to bring a shared index up to date with the
+ * collection after its last documents were removed, and
+ * back again: UPDATE_DOCS documents added and deleted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UpdateBenchmark {
+
+	static final int UPDATE_DOCS = 300;
+
+	private Engine engine;
+	private List<DocumentInCollection> fewer;
+
+
+
+	@Setup(Level.Trial)
+	public void setUp(Corpus corpus) throws Exception {
+		fewer = new ArrayList<DocumentInCollection>(
+				corpus.dics.subList(0, corpus.dics.size() - UPDATE_DOCS));
+		engine = new Engine("211");
+		IndexRegistry.sync(engine, fewer);
+	}
+
+
+
+	@Benchmark
+	public void addAndDelete(Corpus corpus) throws Exception {
+		IndexRegistry.sync(engine, corpus.dics);
+		IndexRegistry.sync(engine, fewer);
+	}
+
+}
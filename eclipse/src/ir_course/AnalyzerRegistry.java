@@ -0,0 +1,56 @@
+package ir_course;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+
+
+
+/**
+ * Keeps one Analyzer for every analyzer configuration
+ * (stemmer and stop words), shared by all engines.
+ *
+ * Analyzers are thread safe, and reuse their TokenStream
+ * components per thread, so a shared analyzer stays warm
+ * for every thread that indexes or parses queries with it.
+ * Shared analyzers must never be closed.
+ */
+public class AnalyzerRegistry {
+
+	private static final Map<String, Analyzer> analyzers = new ConcurrentHashMap<String, Analyzer>();
+
+
+
+	/**
+	 * Return the shared Analyzer with or without the English
+	 * stemmer and stop words, created on first use.
+	 */
+	public static Analyzer get(boolean stemmer, boolean stopwords) {
+		String key = "" + (stemmer ? 1 : 0) + (stopwords ? 1 : 0);
+		return analyzers.computeIfAbsent(key, k -> create(stemmer, stopwords));
+	}
+
+
+
+	private static Analyzer create(boolean stemmer, boolean stopwords) {
+		if (stemmer) {
+			if (stopwords) {
+				return new EnglishAnalyzer();
+			} else {
+				return new EnglishAnalyzer(CharArraySet.EMPTY_SET);
+			}
+		} else {
+			if (stopwords) {
+				// StandardAnalyzer has no stop words by default
+				return new StandardAnalyzer(EnglishAnalyzer.ENGLISH_STOP_WORDS_SET);
+			} else {
+				return new StandardAnalyzer(CharArraySet.EMPTY_SET);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package ir_course;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.queryparser.classic.QueryParser;
+
+
+
+/**
+ * Runs a batch of queries from a topics file through one
+ * engine and reports the throughput.
+ *
+ * Usage: BatchSearch corpus.xml topics [engine code] [threads]
+ *
+ * The topics file is either in TREC format, where every
+ * <top> has a <num> and a <title>, or has one query per line.
+ */
+public class BatchSearch {
+
+	private static final Pattern TREC_TOPIC = Pattern.compile(
+			"<num>\\s*(?:Number:)?\\s*(\\S+).*?<title>\\s*(?:Topic:)?\\s*(.*?)\\s*(?=<)",
+			Pattern.DOTALL);
+
+	// words QueryParser reads as operators, even when escaped
+	private static final Pattern OPERATORS = Pattern.compile("\\b(AND|OR|NOT)\\b");
+
+
+
+	/**
+	 * Read a topics file.
+	 *
+	 * Return queries by topic number, in file order. Plain
+	 * query files are numbered by line.
+	 */
+	public static Map<String, String> readTopics(String path) throws IOException {
+		String text = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		Map<String, String> topics = new LinkedHashMap<String, String>();
+
+		if (text.contains("<top>")) {
+			Matcher matcher = TREC_TOPIC.matcher(text);
+			while (matcher.find()) {
+				topics.put(matcher.group(1), matcher.group(2).replaceAll("\\s+", " "));
+			}
+		} else {
+			String[] lines = text.split("\r?\n");
+			for (int i = 0; i < lines.length; i++) {
+				if (!lines[i].trim().isEmpty()) {
+					topics.put(Integer.toString(i + 1), lines[i].trim());
+				}
+			}
+		}
+		return topics;
+	}
+
+
+
+	/**
+	 * Return the query that searches for the words of a
+	 * topic as they are: QueryParser syntax is escaped and
+	 * operator words are lowercased, which the analyzer
+	 * does to all terms anyway.
+	 */
+	public static String toQuery(String topic) {
+		Matcher matcher = OPERATORS.matcher(QueryParser.escape(topic));
+		StringBuffer query = new StringBuffer();
+		while (matcher.find()) {
+			matcher.appendReplacement(query, matcher.group(1).toLowerCase());
+		}
+		return matcher.appendTail(query).toString();
+	}
+
+
+
+	/**
+	 * Prints the number of retrieved and relevant retrieved
+	 * documents for every topic, then the number of queries
+	 * per second.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String code = args.length > 2 ? args[2] : "211";
+		int threads = args.length > 3 ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+
+		DocumentCollectionParser parser = new DocumentCollectionParser();
+		parser.parse(args[0]);
+		List<DocumentInCollection> dics = parser.getDocuments();
+
+		// topic text is searched as is, not as query syntax
+		Map<String, String> topics = readTopics(args[1]);
+		List<String> ids = new ArrayList<String>(topics.keySet());
+		List<String> queries = new ArrayList<String>();
+		for (String topic : topics.values()) {
+			queries.add(toQuery(topic));
+		}
+		if (queries.isEmpty()) {
+			System.out.println("0 queries: no topics in " + args[1]);
+			return;
+		}
+
+		Engine engine = new Engine(code);
+		engine.setReuseIndex(true);
+
+		// build the index before timing the queries,
+		// without searching any of them
+		IndexRegistry.get(engine, CollectionSource.of(dics));
+
+		int[] count = new int[1];
+		long start = System.nanoTime();
+		engine.doSearchAll(queries, dics, threads, (sr, i) -> {
+			System.out.println(ids.get(i) + "\t" + sr.totalRetrieved
+					+ "\t" + sr.relevantRetrieved + "\t" + sr.query);
+			count[0]++;
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(count[0] + " queries in " + String.format("%.3f", seconds)
+				+ " s with " + threads + " threads: "
+				+ String.format("%.1f", count[0] / seconds) + " queries/s");
+	}
+
+}
@@ -5,23 +5,13 @@
 package ir_course;
 
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.util.CharArraySet;
-import org.apache.lucene.document.*;
-import org.apache.lucene.index.*;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.*;
-import org.apache.lucene.search.similarities.BM25Similarity;
-import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.RAMDirectory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -34,95 +24,56 @@ public class ClirSearch {
     int relevantDocs = 0;
     int relevantRetrieved = 0;
     int retrieved = 0;
+    // results retrieved by a search, all indexed documents if 0
+    int depth = 0;
     List<Float> precision = new ArrayList<>();
     List<Float> recall = new ArrayList<>();
-    Directory corpus = new RAMDirectory();
+    Directory corpus;
+    // indexes and searches with the configuration of this ClirSearch
+    Engine engine;
 
     public ClirSearch(String analyzer, Boolean stemmer, Boolean stopwords) 
     {
         this.analyzer = analyzer;
         this.stemmer = stemmer;
         this.stopwords = stopwords;
+        this.engine = new Engine(getEngineConfig());
 
     }
 
-    public IndexWriterConfig index(List<DocumentInCollection> docs) throws IOException 
+    public void setDepth(int depth) 
     {
+        this.depth = depth;
+    }
 
-        Analyzer analyz;
-        IndexWriterConfig config;
-
-        if (analyzer.equals("vsm") && stopwords && stemmer) 
-        {
-            //VSM cosine similarity with TFIDF + stopwords + stemmer
-            analyz = new EnglishAnalyzer();
-            config = new IndexWriterConfig(analyz);
-            config.setSimilarity(new ClassicSimilarity());
-        } 
-        else if (analyzer.equals("vsm") && !stopwords && stemmer) 
-        {
-            //VSM cosine similarity with TFIDF - stopwords + stemmer
-            analyz = new EnglishAnalyzer(CharArraySet.EMPTY_SET);
-            config = new IndexWriterConfig(analyz);
-            config.setSimilarity(new ClassicSimilarity());
-        } 
-        else if (analyzer.equals("vsm") && stopwords && !stemmer) 
-        {
-            //VSM cosine similarity with TFIDF - stopwords - stemmer
-            analyz = new StandardAnalyzer();
-            config = new IndexWriterConfig(analyz);
-            config.setSimilarity(new ClassicSimilarity());
-        } 
-        else if (analyzer.equals("bm25") && stopwords && stemmer) 
-        {
-            //Analyzer + stopwords + stemmer
-            analyz = new EnglishAnalyzer();
-            config = new IndexWriterConfig(analyz);
-            //BM25 ranking method
-            config.setSimilarity(new BM25Similarity());
-        } 
-        else if (analyzer.equals("bm25") && !stopwords && stemmer) 
-        {
-            //Analyzer - stopwords + stemmer
-            analyz = new EnglishAnalyzer(CharArraySet.EMPTY_SET);
-            config = new IndexWriterConfig(analyz);
-            //BM25 ranking method
-            config.setSimilarity(new BM25Similarity());
-        } 
-        else if (analyzer.equals("bm25") && stopwords && !stemmer) 
-        {
-            //Analyzer + stopwords - stemmer
-            analyz = new StandardAnalyzer();
-            config = new IndexWriterConfig(analyz);
-            //BM25 ranking method
-            config.setSimilarity(new BM25Similarity());
-        } 
-        else 
+    public EngineConfig getEngineConfig() 
+    {
+        boolean bm25 = analyzer.equals("bm25");
+        if ((bm25 || analyzer.equals("vsm")) && (stemmer || stopwords)) 
         {
-            //some default
-            analyz = new StandardAnalyzer();
-            config = new IndexWriterConfig(analyz);
-            config.setSimilarity(new ClassicSimilarity());
+            //VSM cosine similarity with TFIDF or BM25 ranking method,
+            //with or without stopwords and stemmer
+            String code = (bm25 ? "2" : "1") + (stemmer ? "1" : "0") + (stopwords ? "1" : "0");
+            return EngineConfig.fromCode(code);
         }
+        //some default: VSM + stopwords - stemmer
+        return EngineConfig.fromCode("101");
+    }
 
-
-        IndexWriter w = new IndexWriter(corpus, config);
-
+    public IndexWriterConfig index(List<DocumentInCollection> docs) throws IOException 
+    {
         //total 153 documents with group 5
+        List<DocumentInCollection> task = new ArrayList<>();
         for (DocumentInCollection doc1 : docs) {
             if (doc1.getSearchTaskNumber() == 5) {
-                Document doc = new Document();
-                doc.add(new TextField("title", doc1.getTitle(), Field.Store.YES));
-                doc.add(new TextField("abstract_text", doc1.getAbstractText(), Field.Store.YES));
-                doc.add(new TextField("relevance", Boolean.toString(doc1.isRelevant()), Field.Store.YES));
-                w.addDocument(doc);
-                totalDocs++;
-                if (doc1.isRelevant()) relevantDocs++;
+                task.add(doc1);
             }
-
         }
 
-        w.close();
+        IndexWriterConfig config = engine.getConfig(engine.getAnalyzer());
+        corpus = engine.getDirectory(config, task);
+        totalDocs = engine.totalDocs;
+        relevantDocs = engine.relevantDocs;
 
         return config;
     }
@@ -134,45 +85,32 @@ public class ClirSearch {
         List<String> results = new LinkedList<String>();
 
 
-        //Constructing QueryParser to stem search query
-        QueryParser qp = new QueryParser("abstract_text", cf.getAnalyzer());
+        //Engine's QueryParser stems the search query
         Query parsedQuery = null;
 
         try {
-            parsedQuery = qp.parse(searchQuery);
+            parsedQuery = engine.getQuery(searchQuery, cf.getAnalyzer());
             System.out.println(parsedQuery);
         } catch (ParseException e) {
             e.printStackTrace();
+            return results;
         }
 
 
+        // finding top documents qualifying the search,
+        // all of them unless a depth is set
+        engine.setResultDepth(depth > 0 ? depth : Math.max(1, totalDocs));
+        SearchResult sr = engine.search(parsedQuery, corpus);
 
-        // opening directory for search
-        IndexReader reader = DirectoryReader.open(corpus);
-        // implementing search over IndexReader
-        IndexSearcher searcher = new IndexSearcher(reader);
-
-        searcher.setSimilarity(cf.getSimilarity());
-
-        // finding top totalDocs documents qualifying the search
-        TopDocs docs = searcher.search(parsedQuery, totalDocs);
 
-
-        // representing array of hits from TopDocs
-        ScoreDoc[] scored = docs.scoreDocs;
-
-
-        // adding matched doc titles to results
-        for (ScoreDoc aDoc : scored) {
-            Document d = searcher.doc(aDoc.doc);
+        // adding matched doc titles to results,
+        // relevance and score are printed out for debug purposes
+        for (int i = 0; i < sr.totalRetrieved; i++) {
             retrieved++;
-            //relevance and score are printed out for debug purposes
-            if (d.get("relevance").equals("true")) {
+            if (sr.relevances.get(i)) {
                 relevantRetrieved++;
-                results.add("+ " + d.get("title") + " | relevant: " + d.get("relevance") + " | score: " + aDoc.score);
-            } else {
-                results.add("- " + d.get("title") + " | relevant: " + d.get("relevance") + " | score: " + aDoc.score);
             }
+            results.add(sr.stringResults.get(i));
             precision.add((float)relevantRetrieved/retrieved);
             recall.add((float)relevantRetrieved/relevantDocs);
         }
@@ -236,16 +174,16 @@ public class ClirSearch {
         System.out.println("Precision: " + (float)relevantRetrieved / retrieved);
         System.out.println("Recall: " + (float)relevantRetrieved/relevantDocs);
         */
-        int[] arr = new int[0];
+        // highest precision at or below every rank, in one reverse pass
+        float[] suffixMax = new float[precision.size()];
+        float max = 0;
+        for (int j=precision.size()-1;j>=0;j--) {
+            max = Math.max(max, precision.get(j));
+            suffixMax[j] = max;
+        }
         for (int i=0;i<11;i++) {
             int index = nearest(i/10f, recall);
-            float max = precision.get(index);
-            for (int j=index;j<precision.size();j++) {
-                if (precision.get(j) > max) {
-                    max = precision.get(j);
-                }
-            }
-            System.out.println(recall.get(index) + "," + max);
+            System.out.println(recall.get(index) + "," + suffixMax[index]);
         }
     }
 
@@ -0,0 +1,181 @@
+package ir_course;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+
+
+/**
+ * A document collection that indexes are built from:
+ * either parsed documents in a DocumentInCollection List,
+ * or a collection file. A file is either parsed on first
+ * use and its documents kept, or streamed into every index
+ * built from it, without keeping its documents in memory.
+ *
+ * Sources are equal if they are the same List, or the
+ * same file read the same way, so comparing sources never
+ * compares their documents.
+ */
+public class CollectionSource {
+
+	private final String uri;
+	private final Path snapshot;
+	private final boolean streamed;
+	private List<DocumentInCollection> documents;
+	private long checksum;
+
+
+
+	private CollectionSource(List<DocumentInCollection> documents, String uri,
+			Path snapshot, boolean streamed) {
+		this.documents = documents;
+		this.uri = uri;
+		this.snapshot = snapshot;
+		this.streamed = streamed;
+		this.checksum = -1;
+	}
+
+
+
+	/**
+	 * Return the source of a collection of parsed documents.
+	 */
+	public static CollectionSource of(List<DocumentInCollection> documents) {
+		return new CollectionSource(Objects.requireNonNull(documents), null, null, false);
+	}
+
+
+
+	/**
+	 * Return the source of the collection file at uri,
+	 * parsed on first use, through a binary snapshot of
+	 * the collection unless snapshot is null. Its documents
+	 * are kept for all later uses.
+	 */
+	public static CollectionSource parse(String uri, Path snapshot) {
+		return new CollectionSource(null, Objects.requireNonNull(uri), snapshot, false);
+	}
+
+
+
+	/**
+	 * Return the source of the collection file at uri,
+	 * parsed again whenever it is read.
+	 */
+	public static CollectionSource stream(String uri) {
+		return new CollectionSource(null, Objects.requireNonNull(uri), null, true);
+	}
+
+
+
+	/**
+	 * Tell whether the documents are streamed from a file.
+	 */
+	public boolean isStreamed() {
+		return streamed;
+	}
+
+
+
+	/**
+	 * Tell whether the documents are read from a file.
+	 */
+	public boolean isFile() {
+		return uri != null;
+	}
+
+
+
+	/**
+	 * Return the uri of the collection file, or null.
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+
+
+	/**
+	 * Return a CRC32 checksum of the bytes of the
+	 * collection file, computed on first use.
+	 */
+	public synchronized long getChecksum() throws IOException {
+		if (checksum < 0) {
+			checksum = DocumentCollectionParser.checksum(Paths.get(uri));
+		}
+		return checksum;
+	}
+
+
+
+	/**
+	 * Return the documents of the collection. The
+	 * documents of a streamed file are parsed into a
+	 * new List that is not kept.
+	 */
+	public synchronized List<DocumentInCollection> getDocuments() throws IOException {
+		if (documents != null) {
+			return documents;
+		}
+		DocumentCollectionParser parser = new DocumentCollectionParser();
+		if (snapshot == null) {
+			parse(parser);
+		} else if (!parser.parse(uri, snapshot)) {
+			throw new IOException("could not parse " + uri);
+		}
+		if (!streamed) {
+			documents = parser.getDocuments();
+		}
+		return parser.getDocuments();
+	}
+
+
+
+	/**
+	 * Hand every document of the collection to the
+	 * consumer, in collection order. A streamed file is
+	 * parsed while the documents are handed over.
+	 *
+	 * Throws IOException if the file cannot be parsed.
+	 */
+	public void forEach(Consumer<DocumentInCollection> consumer) throws IOException {
+		if (streamed) {
+			parse(new DocumentCollectionParser(consumer));
+		} else {
+			getDocuments().forEach(consumer);
+		}
+	}
+
+	private void parse(DocumentCollectionParser parser) throws IOException {
+		if (!parser.parse(uri)) {
+			throw new IOException("could not parse " + uri);
+		}
+	}
+
+
+
+	public boolean equals(Object o) {
+		if (!(o instanceof CollectionSource)) {
+			return false;
+		}
+		CollectionSource other = (CollectionSource) o;
+		if (uri == null || other.uri == null) {
+			return uri == other.uri && documents == other.documents;
+		}
+		return uri.equals(other.uri) && Objects.equals(snapshot, other.snapshot)
+				&& streamed == other.streamed;
+	}
+
+	public int hashCode() {
+		return uri == null ? System.identityHashCode(documents) : uri.hashCode();
+	}
+
+	public String toString() {
+		return uri == null ? "list of " + documents.size() + " documents" : uri;
+	}
+
+}
@@ -7,9 +7,24 @@
  */
 package ir_course;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -22,6 +37,7 @@ import org.xml.sax.helpers.DefaultHandler;
 public class DocumentCollectionParser extends DefaultHandler {
 	
 	private List<DocumentInCollection> docs;
+	private Consumer<DocumentInCollection> consumer;
 	
 	private boolean item;
 	private boolean title;
@@ -30,11 +46,21 @@ public class DocumentCollectionParser extends DefaultHandler {
 	private boolean query;
 	private boolean relevance;
 	
-	private String currentText;
+	// reused for the text of every element
+	private StringBuilder currentText;
 	private DocumentInCollection currentDoc;
 	
 	public DocumentCollectionParser() {
+		this(null);
+		this.consumer = this.docs::add;
+	}
+	
+	// hands every parsed document to the consumer as soon as its
+	// item ends, instead of collecting the documents into a list
+	public DocumentCollectionParser(Consumer<DocumentInCollection> consumer) {
 		this.docs = new LinkedList<DocumentInCollection>();
+		this.consumer = consumer;
+		this.currentText = new StringBuilder();
 		
 		this.item = false;
 		this.title = false;
@@ -44,11 +70,13 @@ public class DocumentCollectionParser extends DefaultHandler {
 		this.relevance = false;
 	}
 	
-	// parses the document collection in the given URI
-	public void parse(String uri) {
+	// parses the document collection in the given URI,
+	// and tells whether the whole collection was parsed
+	public boolean parse(String uri) {
 		try {
 			SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
 			parser.parse(uri, this);
+			return true;
 		} catch (ParserConfigurationException e) {
 			e.printStackTrace();
 		} catch (SAXException e) {
@@ -56,9 +84,69 @@ public class DocumentCollectionParser extends DefaultHandler {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return false;
 	}
 	
-	// returns the documents of the collection as a list
+	// parses the document collection in the given file, or reads
+	// the documents from a binary snapshot written by an earlier
+	// call if the checksum of the file has not changed since;
+	// otherwise the snapshot is written again while parsing;
+	// tells whether the whole collection was read
+	public boolean parse(String uri, Path snapshot) {
+		long checksum;
+		try {
+			checksum = checksum(Paths.get(uri));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return parse(uri);
+		}
+		try {
+			if (readSnapshot(snapshot, checksum)) {
+				return true;
+			}
+		} catch (IOException e) {
+			// some documents may have been handed out,
+			// so the collection is not parsed again
+			e.printStackTrace();
+			return false;
+		}
+		
+		// written next to the snapshot and moved over it once
+		// complete, so a failed run never leaves a broken one
+		Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+		SnapshotWriter writer;
+		try {
+			writer = new SnapshotWriter(temporary, checksum);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return parse(uri);
+		}
+		Consumer<DocumentInCollection> consumer = this.consumer;
+		this.consumer = doc -> {
+			writer.add(doc);
+			consumer.accept(doc);
+		};
+		boolean parsed;
+		try {
+			parsed = parse(uri);
+		} finally {
+			this.consumer = consumer;
+		}
+		try {
+			writer.close();
+			if (parsed) {
+				Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Files.delete(temporary);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return parsed;
+	}
+	
+	// returns the documents of the collection as a list,
+	// empty if the documents were handed to a consumer
 	public List<DocumentInCollection> getDocuments() {
 		return this.docs;
 	}
@@ -67,7 +155,7 @@ public class DocumentCollectionParser extends DefaultHandler {
 	// methods for the SAX parser below
 	
 	public void startElement(String uri, String localName, String qName, Attributes attributes) {
-		this.currentText = "";
+		this.currentText.setLength(0);
 		if (qName.equals("item")) {
 			this.item = true;
 			this.currentDoc = new DocumentInCollection();
@@ -85,40 +173,296 @@ public class DocumentCollectionParser extends DefaultHandler {
 	}
 	
 	public void endElement(String uri, String localName, String qName)  {
-		this.currentText = this.currentText.trim();
+		String currentText = this.currentText.toString().trim();
 		if (qName.equals("item")) {
 			this.item = false;
 			if (this.currentDoc.getTitle() != null)
-				docs.add(this.currentDoc);
+				consumer.accept(this.currentDoc);
 		}
 		else if (qName.equals("title")) {
-			this.currentDoc.setTitle(this.currentText);
+			this.currentDoc.setTitle(currentText);
 			this.title = false;
 		}
 		else if (qName.equals("abstract")) {
-			this.currentDoc.setAbstractText(this.currentText);
+			this.currentDoc.setAbstractText(currentText);
 			this.abstractText = false;
 		}
 		else if (qName.equals("search_task_number")) {
-			this.currentDoc.setSearchTaskNumber(Integer.valueOf(this.currentText));
+			this.currentDoc.setSearchTaskNumber(Integer.valueOf(currentText));
 			this.searchTaskNumber = false;
 		}
 		else if (qName.equals("query")) {
-			this.currentDoc.setQuery(this.currentText);
+			this.currentDoc.setQuery(currentText);
 			this.query = false;
 		}
 		else if (qName.equals("relevance")) {
-			if (Integer.valueOf(this.currentText) == 1)
+			if (Integer.valueOf(currentText) == 1)
 				this.currentDoc.setRelevant(true);
 			this.relevance = false;
 		}
 	}
 	
 	public void characters(char[] ch, int start, int length) {
-		String text = "";
-		for (int i=0; i<length; i++)
-			text += ch[start+i];
-		this.currentText += text;
+		this.currentText.append(ch, start, length);
+	}
+	
+	
+	// binary snapshots below
+	//
+	// A snapshot starts with a header: magic number, format
+	// version, checksum of the collection file, and offset of
+	// the columns. Then title, abstract and query of every
+	// document follow as UTF-8 bytes prefixed by their length,
+	// -1 for null. The columns at the end hold the number of
+	// documents, their search task numbers and their relevance.
+	
+	private static final int SNAPSHOT_MAGIC = 0x49524443;
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_HEADER = 24;
+	
+	// largest part of a snapshot mapped at a time
+	private static final int SNAPSHOT_WINDOW = 64 * 1024 * 1024;
+	
+	// returns a CRC32 checksum of the contents of a file
+	static long checksum(Path path) throws IOException {
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += SNAPSHOT_WINDOW) {
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(SNAPSHOT_WINDOW, size - position)));
+			}
+		}
+		return crc.getValue();
+	}
+	
+	// hands the documents of a snapshot to the consumer if it
+	// exists, was written for a collection with the given
+	// checksum and is complete, and tells whether it did;
+	// the whole snapshot is checked before any document is
+	// handed out, so only a failing read throws
+	boolean readSnapshot(Path snapshot, long checksum) throws IOException {
+		if (!Files.isRegularFile(snapshot)) {
+			return false;
+		}
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(snapshot, StandardOpenOption.READ);
+		} catch (IOException e) {
+			return false;
+		}
+		try (channel) {
+			long columnsOffset = checkSnapshot(channel, checksum);
+			if (columnsOffset < 0) {
+				return false;
+			}
+			
+			// columns first, then the strings of every document
+			MappedByteBuffer columns = channel.map(FileChannel.MapMode.READ_ONLY,
+					columnsOffset, channel.size() - columnsOffset);
+			int count = columns.getInt();
+			int[] searchTaskNumbers = new int[count];
+			columns.asIntBuffer().get(searchTaskNumbers);
+			columns.position(columns.position() + 4 * count);
+			byte[] relevance = new byte[count];
+			columns.get(relevance);
+			
+			MappedInput input = new MappedInput(channel, SNAPSHOT_HEADER, columnsOffset);
+			for (int i = 0; i < count; i++) {
+				String title = input.readString();
+				String abstractText = input.readString();
+				String query = input.readString();
+				this.consumer.accept(new DocumentInCollection(title, abstractText,
+						searchTaskNumbers[i], query, relevance[i] == 1));
+			}
+		}
+		return true;
+	}
+	
+	// returns the offset of the columns of a snapshot written
+	// for a collection with the given checksum, or -1 if the
+	// snapshot is stale: written for another collection or
+	// format, or not complete
+	private static long checkSnapshot(FileChannel channel, long checksum) {
+		try {
+			long size = channel.size();
+			if (size < SNAPSHOT_HEADER) {
+				return -1;
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER);
+			if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION
+					|| header.getLong() != checksum) {
+				return -1;
+			}
+			long columnsOffset = header.getLong();
+			if (columnsOffset < SNAPSHOT_HEADER || columnsOffset > size - 4) {
+				return -1;
+			}
+			
+			// the columns fill the rest of the snapshot,
+			// and the strings of all documents the part before
+			int count = channel.map(FileChannel.MapMode.READ_ONLY, columnsOffset, 4).getInt();
+			if (count < 0 || size - columnsOffset != 4 + 5L * count) {
+				return -1;
+			}
+			MappedInput input = new MappedInput(channel, SNAPSHOT_HEADER, columnsOffset);
+			for (long i = 0; i < 3L * count; i++) {
+				if (!input.skipString()) {
+					return -1;
+				}
+			}
+			return input.remaining() == 0 ? columnsOffset : -1;
+		} catch (IOException | RuntimeException e) {
+			return -1;
+		}
+	}
+	
+	// writes a snapshot while documents are added to it
+	private static class SnapshotWriter {
+		
+		private final FileChannel channel;
+		private final DataOutputStream out;
+		private final long checksum;
+		private int[] searchTaskNumbers;
+		private byte[] relevance;
+		private int count;
+		// first write error, reported when the writer is closed
+		private IOException failure;
+		
+		SnapshotWriter(Path path, long checksum) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			this.checksum = checksum;
+			this.searchTaskNumbers = new int[1024];
+			this.relevance = new byte[1024];
+			this.count = 0;
+			writeHeader(0);
+		}
+		
+		void add(DocumentInCollection doc) {
+			if (failure != null) {
+				return;
+			}
+			try {
+				writeString(doc.getTitle());
+				writeString(doc.getAbstractText());
+				writeString(doc.getQuery());
+			} catch (IOException e) {
+				failure = e;
+				return;
+			}
+			if (count == searchTaskNumbers.length) {
+				searchTaskNumbers = Arrays.copyOf(searchTaskNumbers, count * 2);
+				relevance = Arrays.copyOf(relevance, count * 2);
+			}
+			searchTaskNumbers[count] = doc.getSearchTaskNumber();
+			relevance[count] = (byte) (doc.isRelevant() ? 1 : 0);
+			count++;
+		}
+		
+		private void writeString(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		
+		private void writeHeader(long columnsOffset) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER);
+			header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION)
+					.putLong(checksum).putLong(columnsOffset).flip();
+			channel.write(header, 0);
+			channel.position(SNAPSHOT_HEADER);
+		}
+		
+		// writes the columns, and then their offset to the header
+		public void close() throws IOException {
+			try {
+				if (failure != null) {
+					throw failure;
+				}
+				out.flush();
+				long columnsOffset = channel.position();
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeInt(searchTaskNumbers[i]);
+				}
+				out.write(relevance, 0, count);
+				out.flush();
+				writeHeader(columnsOffset);
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	// reads a part of a file through a memory mapped window
+	// moved along the file, so files of any size can be read
+	private static class MappedInput {
+		
+		private final FileChannel channel;
+		private final long end;
+		private long windowStart;
+		private MappedByteBuffer window;
+		
+		MappedInput(FileChannel channel, long start, long end) throws IOException {
+			this.channel = channel;
+			this.end = end;
+			this.windowStart = start;
+			this.window = map(0);
+		}
+		
+		private MappedByteBuffer map(int minimum) throws IOException {
+			long length = Math.min(end - windowStart, Math.max(minimum, SNAPSHOT_WINDOW));
+			return channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+		}
+		
+		// bytes left after the current position
+		long remaining() {
+			return end - windowStart - window.position();
+		}
+		
+		private void ensure(int bytes) throws IOException {
+			if (window.remaining() < bytes) {
+				windowStart += window.position();
+				window = map(bytes);
+			}
+		}
+		
+		String readString() throws IOException {
+			ensure(4);
+			int length = window.getInt();
+			if (length < 0) {
+				return null;
+			}
+			ensure(length);
+			byte[] bytes = new byte[length];
+			window.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		// skips a string, and tells whether it was complete
+		boolean skipString() throws IOException {
+			if (remaining() < 4) {
+				return false;
+			}
+			ensure(4);
+			int length = window.getInt();
+			if (length < -1 || length > remaining()) {
+				return false;
+			}
+			if (length <= window.remaining()) {
+				window.position(window.position() + Math.max(length, 0));
+			} else {
+				windowStart += window.position() + length;
+				window = map(0);
+			}
+			return true;
+		}
 	}
 
 }
\ No newline at end of file
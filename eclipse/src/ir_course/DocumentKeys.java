@@ -0,0 +1,123 @@
+package ir_course;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+
+/**
+ * Gives the documents of a collection unique keys: a SHA-1
+ * hash of their title and abstract, and the number of
+ * documents with the same hash before them.
+ *
+ * Hashes are counted by their first 64 bits, in an open
+ * addressing table of primitive arrays, so a streamed
+ * collection is numbered without keeping its keys or any
+ * object per document.
+ */
+class DocumentKeys {
+
+	private long[] digests;
+	private int[] counts;
+	private int size;
+
+
+
+	/**
+	 * Constructor. No documents are counted yet.
+	 */
+	DocumentKeys() {
+		this.digests = new long[64];
+		this.counts = new int[64];
+		this.size = 0;
+	}
+
+
+
+	/**
+	 * Return the key of the next document, counting it.
+	 */
+	String next(DocumentInCollection dic) {
+		byte[] hash = getContentHash(dic);
+		long digest = 0;
+		for (int i = 0; i < 8; i++) {
+			digest = digest << 8 | (hash[i] & 0xFF);
+		}
+		int slot = find(digest);
+		int occurrence = counts[slot];
+		count(slot, digest, occurrence + 1);
+
+		StringBuilder key = new StringBuilder(2 * hash.length + 4);
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.append('-').append(occurrence).toString();
+	}
+
+
+
+	/**
+	 * Count a document that already has the given key, so
+	 * that later documents with the same hash are numbered
+	 * after it.
+	 */
+	void add(String key) {
+		long digest = Long.parseUnsignedLong(key.substring(0, 16), 16);
+		int occurrence = Integer.parseInt(key.substring(key.lastIndexOf('-') + 1));
+		int slot = find(digest);
+		count(slot, digest, Math.max(counts[slot], occurrence + 1));
+	}
+
+
+
+	// slot of a digest, or the empty slot for it
+	private int find(long digest) {
+		int mask = digests.length - 1;
+		int slot = Long.hashCode(digest * 0x9E3779B97F4A7C15L) & mask;
+		while (counts[slot] > 0 && digests[slot] != digest) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void count(int slot, long digest, int count) {
+		if (counts[slot] == 0) {
+			digests[slot] = digest;
+			size++;
+		}
+		counts[slot] = count;
+		// at most half full, so that probes stay short
+		if (2 * size > digests.length) {
+			long[] oldDigests = digests;
+			int[] oldCounts = counts;
+			digests = new long[oldDigests.length * 2];
+			counts = new int[oldCounts.length * 2];
+			for (int i = 0; i < oldDigests.length; i++) {
+				if (oldCounts[i] > 0) {
+					int at = find(oldDigests[i]);
+					digests[at] = oldDigests[i];
+					counts[at] = oldCounts[i];
+				}
+			}
+		}
+	}
+
+	private static byte[] getContentHash(DocumentInCollection dic) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		if (dic.getTitle() != null) {
+			digest.update(dic.getTitle().getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update((byte) 0);
+		if (dic.getAbstractText() != null) {
+			digest.update(dic.getAbstractText().getBytes(StandardCharsets.UTF_8));
+		}
+		return digest.digest();
+	}
+
+}
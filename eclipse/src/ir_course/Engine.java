@@ -1,40 +1,114 @@
 package ir_course;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollectorManager;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.MMapDirectory;
 
 public class Engine {
 	
+	EngineConfig engineConfig;
 	Integer ranking;
 	Integer stemmer;
 	Integer stopwords;
 	int totalDocs;
 	int relevantDocs;
-	int totalRet;
-	int relevantRet;
+	int judgedDocs;
+	boolean reuseIndex;
+	Path indexPath;
+	int indexThreads;
+	double ramBufferSizeMB;
+	int ramPerThreadHardLimitMB;
+	MergePolicy mergePolicy;
+	int resultDepth;
+	boolean scoreOnly;
+	boolean nativeIndex;
+	int shards;
+	ExecutorService searchExecutor;
+	int segmentsPerSlice;
+	int segments;
+	
+	// change whenever the layout of indexed documents changes,
+	// so that persistent indexes are rebuilt
+	static final String INDEX_FORMAT = "5";
+	
+	// rank by score, then by position in the collection
+	static final Sort RANK_ORDER = new Sort(SortField.FIELD_SCORE,
+			new SortField("position", SortField.Type.INT));
+	
+	// stored fields read for every hit
+	static final Set<String> HIT_FIELDS = Collections.singleton("title");
+	
+	// parsed queries by analyzer configuration and query string
+	static final int QUERY_CACHE_SIZE = 10000;
+	static final Map<String, Query> parsedQueries = new ConcurrentHashMap<String, Query>();
+	
+	// results retrieved by every search unless set otherwise,
+	// deep enough for evaluation
+	static final int DEFAULT_RESULT_DEPTH = 1000;
+	
+	// queries per thread searched ahead of the consumer
+	// of a batch
+	static final int SEARCH_AHEAD = 4;
+	
+	// documents handed to an indexing thread at a time
+	static final int INDEX_BATCH_SIZE = 256;
+	
+	// results of searches in shared indexes, if enabled
+	static ResultCache resultCache = null;
 
 	
 	
@@ -42,38 +116,226 @@ public class Engine {
 	 * Constructor uses predefined code
 	 * to create a search engine.
 	 */
-	public Engine(String code) {				
-		this.ranking = Integer.parseInt(code.charAt(0)+"");
-		this.stemmer = Integer.parseInt(code.charAt(1)+"");
-		this.stopwords = Integer.parseInt(code.charAt(2)+"");
+	public Engine(String code) {
+		this(EngineConfig.fromCode(code));
+	}
+	
+	
+	
+	/**
+	 * Constructor creates a search engine with
+	 * any ranking Similarity and analyzer.
+	 */
+	public Engine(EngineConfig engineConfig) {
+		this.engineConfig = engineConfig;
+		this.ranking = engineConfig.getRanking();
+		this.stemmer = engineConfig.stemmer ? 1 : 0;
+		this.stopwords = engineConfig.stopwords ? 1 : 0;
 		this.totalDocs = 0;
 		this.relevantDocs = 0;
-		this.totalRet = 0;
-		this.relevantRet = 0;
+		this.judgedDocs = 0;
+		this.reuseIndex = false;
+		this.indexPath = null;
+		this.indexThreads = 1;
+		this.ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+		this.ramPerThreadHardLimitMB = IndexWriterConfig.DEFAULT_RAM_PER_THREAD_HARD_LIMIT_MB;
+		this.mergePolicy = null;
+		this.resultDepth = DEFAULT_RESULT_DEPTH;
+		this.scoreOnly = false;
+		this.nativeIndex = false;
+		this.shards = 1;
+		this.searchExecutor = null;
+		this.segmentsPerSlice = 0;
+		this.segments = 0;
 	}
 	
 	
 	
 	/**
-	 * Create an Analyzer according to engine
-	 * configuration.
+	 * When enabled, doSearch takes the index for this
+	 * analyzer configuration from the IndexRegistry
+	 * instead of indexing the collection for every query.
+	 */
+	public void setReuseIndex(boolean reuseIndex) {
+		this.reuseIndex = reuseIndex;
+	}
+	
+	
+	
+	/**
+	 * When set, indexes are kept on disk under the given
+	 * path and opened again by later runs, as long as the
+	 * document collection has not changed.
+	 */
+	public void setIndexPath(Path indexPath) {
+		this.indexPath = indexPath;
+	}
+	
+	
+	
+	/**
+	 * Number of threads adding documents to IndexWriter.
+	 * With more than one thread, documents are indexed
+	 * in batches and their order in the index is not kept.
+	 */
+	public void setIndexThreads(int indexThreads) {
+		this.indexThreads = indexThreads;
+	}
+	
+	
+	
+	/**
+	 * Tune IndexWriter memory use: the total buffer for
+	 * all indexing threads, and the hard limit for each
+	 * thread's segment before it is flushed.
+	 */
+	public void setRAMBufferSizeMB(double ramBufferSizeMB, int ramPerThreadHardLimitMB) {
+		this.ramBufferSizeMB = ramBufferSizeMB;
+		this.ramPerThreadHardLimitMB = ramPerThreadHardLimitMB;
+	}
+	
+	
+	
+	/**
+	 * Use the given MergePolicy instead of the default
+	 * one of IndexWriterConfig.
+	 */
+	public void setMergePolicy(MergePolicy mergePolicy) {
+		this.mergePolicy = mergePolicy;
+	}
+	
+	
+	
+	/**
+	 * Number of top results retrieved by every search,
+	 * at least 1.
+	 * 
+	 * Evaluation needs deep rankings, while interactive
+	 * searches only show the top results; with a small depth
+	 * the hit queue stays small and stored fields and
+	 * judgments are read for the shown results only.
+	 */
+	public void setResultDepth(int resultDepth) {
+		if (resultDepth < 1) {
+			throw new IllegalArgumentException("result depth must be at least 1, not " + resultDepth);
+		}
+		this.resultDepth = resultDepth;
+	}
+	
+	
+	
+	/**
+	 * When enabled, searches of Lucene indexes rank by score
+	 * alone, so Lucene skips documents that cannot make the
+	 * top results instead of scoring every match: much
+	 * faster for small result depths. Equal scores are then
+	 * in index order instead of collection order, which
+	 * differ if the index was built with several threads
+	 * or updated.
+	 */
+	public void setScoreOnly(boolean scoreOnly) {
+		this.scoreOnly = scoreOnly;
+	}
+	
+	
+	
+	/**
+	 * When enabled, doSearch searches an InvertedIndex
+	 * for this analyzer configuration instead of a Lucene
+	 * index. Only VSM and BM25 ranking, and queries
+	 * of plain terms, are supported.
+	 */
+	public void setNativeIndex(boolean nativeIndex) {
+		this.nativeIndex = nativeIndex;
+	}
+	
+	
+	
+	/**
+	 * With more than one shard, doSearch searches a
+	 * ShardedIndex of that many shards for this analyzer
+	 * configuration, all shards in parallel. Rankings are
+	 * the same as those of one index.
+	 */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+	
+	
+	
+	/**
+	 * Search every query with the given executor, in slices
+	 * of up to segmentsPerSlice segments each, so that one
+	 * query runs on several threads. With 0 segments per
+	 * slice, every segment is a slice of its own. With a
+	 * null executor, queries run on the calling thread.
+	 * 
+	 * The executor is shut down by the caller.
+	 */
+	public void setSearchExecutor(ExecutorService searchExecutor, int segmentsPerSlice) {
+		this.searchExecutor = searchExecutor;
+		this.segmentsPerSlice = segmentsPerSlice;
+	}
+	
+	
+	
+	/**
+	 * When more than 0, indexes built from a
+	 * DocumentInCollection List are written as that many
+	 * segments of equal size, which are never merged, so
+	 * that sliced searches divide the work evenly.
+	 * Segments are only equal with one indexing thread.
+	 */
+	public void setSegments(int segments) {
+		this.segments = segments;
+	}
+	
+	
+	
+	/**
+	 * Set the cache of results of searches in shared
+	 * indexes, with its size and time to live. Results are
+	 * not cached unless a cache is set; every cached result
+	 * holds the titles of all its hits. With null, results
+	 * are no longer cached.
+	 */
+	public static void setResultCache(ResultCache cache) {
+		resultCache = cache;
+	}
+	
+	
+	
+	/**
+	 * Return a key identifying the analyzer configuration
+	 * (stemmer and stop words) of this engine.
+	 */
+	public String getAnalyzerKey() {
+		return "" + stemmer + stopwords;
+	}
+	
+	
+	
+	/**
+	 * Return the code of this engine's configuration.
+	 */
+	public String getCode() {
+		return engineConfig.code;
+	}
+	
+	
+	
+	/**
+	 * Get the Analyzer for engine configuration,
+	 * shared with all other engines through
+	 * AnalyzerRegistry.
 	 * 
 	 * Return Analyzer.
 	 */
 	public Analyzer getAnalyzer() {
-		if(stemmer == 1) {
-			if(stopwords == 1) {
-				return new EnglishAnalyzer();
-			} else {
-				return new EnglishAnalyzer(CharArraySet.EMPTY_SET);
-			}
-		} else {
-			if(stopwords == 1) {
-				return new StandardAnalyzer();
-			} else {
-				return new StandardAnalyzer(CharArraySet.EMPTY_SET);
-			}
-		}
+		long start = System.nanoTime();
+		Analyzer analyzer = AnalyzerRegistry.get(stemmer == 1, stopwords == 1);
+		StageMetrics.record(StageMetrics.ANALYZER, getCode(), start);
+		return analyzer;
 	}
 	
 	
@@ -86,10 +348,11 @@ public class Engine {
 	 */
 	public IndexWriterConfig getConfig(Analyzer analyzer) {
 		IndexWriterConfig config = new IndexWriterConfig(analyzer);
-		if(ranking == 1) {
-			config.setSimilarity(new ClassicSimilarity());
-		} else {
-			config.setSimilarity(new BM25Similarity());
+		config.setSimilarity(engineConfig.similarity);
+		config.setRAMBufferSizeMB(ramBufferSizeMB);
+		config.setRAMPerThreadHardLimitMB(ramPerThreadHardLimitMB);
+		if (mergePolicy != null) {
+			config.setMergePolicy(mergePolicy);
 		}
 		return config;		
 	}
@@ -97,95 +360,601 @@ public class Engine {
 	
 	
 	/**
-	 * Create a RAMDirectory using IndexWriterConfig and
+	 * Set up IndexWriterConfig to write a collection of
+	 * count documents as the set number of segments: a flush
+	 * after every segment's worth of documents, and no merges.
+	 */
+	void configureSegments(IndexWriterConfig config, int count) {
+		if (segments > 0) {
+			config.setMergePolicy(NoMergePolicy.INSTANCE);
+			// flush by document count only; it must be
+			// enabled before flushing by RAM is disabled
+			config.setMaxBufferedDocs(Math.max(2, (count + segments - 1) / segments));
+			config.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+		}
+	}
+	
+	
+	
+	/**
+	 * Create an in-memory Directory.
+	 * 
+	 * All in-memory indexes are created here, so that
+	 * the Directory implementation is chosen in one place.
+	 * 
+	 * Return Directory.
+	 */
+	public static Directory newMemoryDirectory() {
+		return new ByteBuffersDirectory();
+	}
+	
+	
+	
+	/**
+	 * Create an in-memory Directory using IndexWriterConfig and
 	 * a collection of documents.
 	 * 
-	 * Return RAMDirectory.
+	 * If an index path is set, a persistent directory
+	 * is used instead.
+	 * 
+	 * Return Directory.
 	 */
 	public Directory getDirectory(IndexWriterConfig config,
 			List<DocumentInCollection> dics) throws IOException {
 		
-		Directory directory = new RAMDirectory();		
+		if (indexPath != null) {
+			return getPersistentDirectory(config, CollectionSource.of(dics));
+		}
+		
+		Directory directory = newMemoryDirectory();
+		configureSegments(config, dics.size());
 		IndexWriter writer = new IndexWriter(directory, config);
+		addDocuments(writer, dics);
+		writer.close();
+		return directory;
+	}
+	
+	
+	
+	/**
+	 * Open an MMapDirectory for this analyzer configuration
+	 * under the index path, for a collection of documents.
+	 * 
+	 * Return MMapDirectory.
+	 */
+	public Directory getPersistentDirectory(IndexWriterConfig config,
+			List<DocumentInCollection> dics) throws IOException {
+		return getPersistentDirectory(config, CollectionSource.of(dics));
+	}
+	
+	
+	
+	/**
+	 * Open an MMapDirectory for this analyzer configuration
+	 * under the index path.
+	 * 
+	 * The existing index is opened as is if it was built from
+	 * a source with the same fingerprint. The fingerprint of a
+	 * collection file is taken from its bytes, so a current
+	 * index is opened without parsing the file. Otherwise the
+	 * index is rebuilt from the source.
+	 * 
+	 * Return MMapDirectory.
+	 */
+	public Directory getPersistentDirectory(IndexWriterConfig config,
+			CollectionSource source) throws IOException {
 		
-		for (DocumentInCollection dic: dics) {
-			
-			Document doc = new Document();
-			doc.add(new TextField("title", dic.getTitle(), Field.Store.YES));
-            doc.add(new TextField("abstract_text", dic.getAbstractText(), Field.Store.YES));
-            
-            // write ALL documents to directory,
-            // but only relevant documents for task 5 are considered relevant
-            if(dic.getSearchTaskNumber() == 5) {
-            	doc.add(new TextField("relevance", Boolean.toString(dic.isRelevant()), Field.Store.YES));
-            } else {
-            	doc.add(new TextField("relevance", "false", Field.Store.YES));
-            }
-            writer.addDocument(doc);
-            totalDocs++;
-            if (dic.isRelevant() && dic.getSearchTaskNumber() == 5) relevantDocs++;
-			
+		Directory directory = new MMapDirectory(indexPath.resolve("index-" + getAnalyzerKey()));
+		String fingerprint = getFingerprint(source);
+		
+		// document counts are kept in the commit data,
+		// so the collection is not read again
+		if (DirectoryReader.indexExists(directory)) {
+			Map<String, String> commitData = SegmentInfos.readLatestCommit(directory).getUserData();
+			if (fingerprint.equals(commitData.get("fingerprint"))) {
+				totalDocs += Integer.parseInt(commitData.get("totalDocs"));
+				relevantDocs += Integer.parseInt(commitData.get("relevantDocs"));
+				judgedDocs += Integer.parseInt(commitData.get("judgedDocs"));
+				return directory;
+			}
+		}
+		
+		int totalBefore = totalDocs;
+		int relevantBefore = relevantDocs;
+		int judgedBefore = judgedDocs;
+		config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		IndexWriter writer;
+		if (source.isStreamed()) {
+			writer = new IndexWriter(directory, config);
+			streamDocuments(writer, source.getUri());
+		} else {
+			List<DocumentInCollection> dics = source.getDocuments();
+			configureSegments(config, dics.size());
+			writer = new IndexWriter(directory, config);
+			addDocuments(writer, dics);
 		}
+		setCommitData(writer, fingerprint, totalDocs - totalBefore,
+					relevantDocs - relevantBefore, judgedDocs - judgedBefore);
 		writer.close();
 		return directory;
 	}
 	
 	
 	
+	/**
+	 * Create a Directory by streaming the document collection
+	 * at uri straight into IndexWriter, without keeping the
+	 * parsed documents in memory. Only a 64-bit digest and a
+	 * count per distinct document are kept, to give repeated
+	 * documents unique keys.
+	 * 
+	 * If an index path is set, a persistent directory
+	 * is used instead.
+	 * 
+	 * Return Directory.
+	 */
+	public Directory getDirectory(IndexWriterConfig config,
+			String uri) throws IOException {
+		
+		if (indexPath != null) {
+			return getPersistentDirectory(config, CollectionSource.stream(uri));
+		}
+		
+		Directory directory = newMemoryDirectory();
+		IndexWriter writer = new IndexWriter(directory, config);
+		streamDocuments(writer, uri);
+		writer.close();
+		return directory;
+	}
+	
+	
+	
+	/**
+	 * Add the documents of the collection at uri to
+	 * IndexWriter while it is parsed, from several threads
+	 * if so configured. The writer is rolled back if the
+	 * collection cannot be indexed.
+	 * 
+	 * Counts all documents and documents relevant for task 5.
+	 */
+	private void streamDocuments(IndexWriter writer, String uri) throws IOException {
+		int[] count = new int[1];
+		DocumentKeys keys = new DocumentKeys();
+		ParallelIndexer indexer = indexThreads > 1
+				? new ParallelIndexer(writer, indexThreads, INDEX_BATCH_SIZE) : null;
+		
+		Consumer<DocumentInCollection> add = dic -> {
+			try {
+				String key = keys.next(dic);
+				if (indexer != null) {
+					indexer.add(getDocument(dic, count[0], key));
+					countDocument(dic);
+				} else {
+					addDocument(writer, dic, count[0], key);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			count[0]++;
+		};
+		try {
+			try {
+				CollectionSource.stream(uri).forEach(add);
+			} finally {
+				if (indexer != null) {
+					indexer.close();
+				}
+			}
+		} catch (UncheckedIOException e) {
+			writer.rollback();
+			throw e.getCause();
+		} catch (IOException e) {
+			writer.rollback();
+			throw e;
+		}
+	}
+	
+	
+	
+	/**
+	 * Record the collection fingerprint and document counts
+	 * in the next commit of a persistent index.
+	 */
+	static void setCommitData(IndexWriter writer, String fingerprint,
+			int indexedDocs, int indexedRelevantDocs, int indexedJudgedDocs) {
+		Map<String, String> commitData = new HashMap<String, String>();
+		commitData.put("fingerprint", fingerprint);
+		commitData.put("totalDocs", Integer.toString(indexedDocs));
+		commitData.put("relevantDocs", Integer.toString(indexedRelevantDocs));
+		commitData.put("judgedDocs", Integer.toString(indexedJudgedDocs));
+		writer.setLiveCommitData(commitData.entrySet());
+	}
+	
+	
+	
+	/**
+	 * Add a collection of documents to IndexWriter,
+	 * from several threads if so configured.
+	 * 
+	 * Counts all documents and documents relevant for task 5.
+	 */
+	public void addDocuments(IndexWriter writer,
+			List<DocumentInCollection> dics) throws IOException {
+		
+		DocumentKeys keys = new DocumentKeys();
+		if (indexThreads > 1) {
+			ParallelIndexer indexer = new ParallelIndexer(writer, indexThreads, INDEX_BATCH_SIZE);
+			try {
+				int position = 0;
+				for (DocumentInCollection dic: dics) {
+					indexer.add(getDocument(dic, position++, keys.next(dic)));
+					countDocument(dic);
+				}
+			} finally {
+				indexer.close();
+			}
+			return;
+		}
+		
+		int position = 0;
+		for (DocumentInCollection dic: dics) {
+			addDocument(writer, dic, position++, keys.next(dic));
+		}
+	}
+	
+	
+	
+	/**
+	 * Add one document to IndexWriter, given its position
+	 * in the collection and its key.
+	 * 
+	 * Counts all documents and documents relevant for task 5.
+	 */
+	public void addDocument(IndexWriter writer,
+			DocumentInCollection dic, int position, String key) throws IOException {
+		writer.addDocument(getDocument(dic, position, key));
+		countDocument(dic);
+	}
+	
+	
+	
+	/**
+	 * Create a Lucene Document from a DocumentInCollection,
+	 * its position in the collection and its key.
+	 * 
+	 * The position breaks ties between equally scored hits,
+	 * so rankings do not depend on the order of indexing.
+	 * The key identifies the document in index updates.
+	 * 
+	 * Return Document.
+	 */
+	public Document getDocument(DocumentInCollection dic, int position, String key) {
+		Document doc = new Document();
+		doc.add(new StringField("key", key, Field.Store.YES));
+		doc.add(new TextField("title", dic.getTitle(), Field.Store.YES));
+		doc.add(new TextField("abstract_text", dic.getAbstractText(), Field.Store.YES));
+		doc.add(new NumericDocValuesField("position", position));
+		
+		// write ALL documents to directory,
+		// but only documents for task 5 are judged for relevance.
+		// Judgments are a doc values column:
+		// 1 relevant, 0 not relevant, -1 not judged
+		doc.add(new NumericDocValuesField("relevance", getJudgment(dic)));
+		return doc;
+	}
+	
+	
+	
+	/**
+	 * Return the relevance judgment of a document:
+	 * 1 relevant, 0 not relevant, -1 not judged.
+	 */
+	static int getJudgment(DocumentInCollection dic) {
+		if (dic.getSearchTaskNumber() == 5) {
+			return dic.isRelevant() ? 1 : 0;
+		}
+		return -1;
+	}
+	
+	
+	
+	private void countDocument(DocumentInCollection dic) {
+		totalDocs++;
+		if (dic.isRelevant() && dic.getSearchTaskNumber() == 5) relevantDocs++;
+		if (dic.getSearchTaskNumber() == 5) judgedDocs++;
+	}
+	
+	
+	
+	/**
+	 * Compute a fingerprint of a collection source and of
+	 * the index layout: from the bytes of a collection file,
+	 * which is not parsed, or from the documents of a List.
+	 * 
+	 * Persistent indexes with a different fingerprint
+	 * are out of date.
+	 */
+	public static String getFingerprint(CollectionSource source) throws IOException {
+		if (source.isFile()) {
+			return "file-" + INDEX_FORMAT + "-" + Long.toHexString(source.getChecksum());
+		}
+		return getFingerprint(source.getDocuments());
+	}
+	
+	
+	
+	/**
+	 * Compute a fingerprint of a collection of documents
+	 * and of the index layout.
+	 * 
+	 * Persistent indexes with a different fingerprint
+	 * are out of date.
+	 */
+	public static String getFingerprint(List<DocumentInCollection> dics) {
+		CRC32 crc = new CRC32();
+		updateFingerprint(crc, INDEX_FORMAT);
+		for (DocumentInCollection dic : dics) {
+			updateFingerprint(crc, dic);
+		}
+		return dics.size() + "-" + Long.toHexString(crc.getValue());
+	}
+	
+	private static void updateFingerprint(CRC32 crc, DocumentInCollection dic) {
+		updateFingerprint(crc, dic.getTitle());
+		updateFingerprint(crc, dic.getAbstractText());
+		updateFingerprint(crc, Integer.toString(dic.getSearchTaskNumber()));
+		updateFingerprint(crc, Boolean.toString(dic.isRelevant()));
+	}
+	
+	private static void updateFingerprint(CRC32 crc, String value) {
+		if (value != null) {
+			crc.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+		crc.update(0);
+	}
+	
+	
+	
 	/**
 	 * Parse a String query.
 	 * 
 	 * Return parsed Query.
 	 */
 	public Query getQuery(String query, Analyzer analyzer) throws ParseException {
+		long start = System.nanoTime();
 		QueryParser parser = new QueryParser("abstract_text", analyzer);
 		Query parsedQuery = parser.parse(query);
+		StageMetrics.record(StageMetrics.PARSE, getCode(), start);
 		return parsedQuery;
 	}
 	
 	
 	
 	/**
-	 * Perform search of Query in Directory.
+	 * Parse a String query, or take it from the cache of
+	 * queries parsed before with the same analyzer
+	 * configuration.
 	 * 
-	 * Apply correct ranking according to engine configuration.
+	 * Return parsed Query.
+	 */
+	public Query getCachedQuery(String query, Analyzer analyzer) throws ParseException {
+		String key = getAnalyzerKey() + ":" + query;
+		Query parsedQuery = parsedQueries.get(key);
+		if (parsedQuery == null) {
+			StageMetrics.increment("query_cache_miss", getCode());
+			parsedQuery = getQuery(query, analyzer);
+			// a simple bound, enough for repeated query logs
+			if (parsedQueries.size() >= QUERY_CACHE_SIZE) {
+				parsedQueries.clear();
+			}
+			parsedQueries.put(key, parsedQuery);
+		} else {
+			StageMetrics.increment("query_cache_hit", getCode());
+		}
+		return parsedQuery;
+	}
+	
+	
+	
+	/**
+	 * Perform search of Query in Directory.
 	 * 
-	 * Retrieve top 1000 documents from returned results.
+	 * Opens a reader for this search only.
 	 * 
 	 * Return a SearchResult object.
 	 */
 	public SearchResult search(Query query, Directory directory) throws IOException {
+		try (IndexReader reader = DirectoryReader.open(directory)) {
+			return search(query, newSearcher(reader));
+		}
+	}
+	
+	
+	
+	/**
+	 * Perform search of Query with a searcher acquired from
+	 * SearcherManager, released again after the search.
+	 * 
+	 * The reader of the acquired searcher is shared with
+	 * concurrent searches, and stays open between searches.
+	 * 
+	 * Results are taken from the result cache when the
+	 * same search was done before in the same version
+	 * of the index.
+	 * 
+	 * Return a SearchResult object.
+	 */
+	public SearchResult search(Query query, SearcherManager manager) throws IOException {
+		IndexSearcher searcher = manager.acquire();
+		try {
+			return cachedSearch(query, searcher.getIndexReader());
+		} finally {
+			manager.release(searcher);
+		}
+	}
+	
+	private SearchResult cachedSearch(Query query, IndexReader reader) throws IOException {
+		ResultCache cache = resultCache;
+		if (cache == null) {
+			return search(query, newSearcher(reader));
+		}
+		long version = ((DirectoryReader) reader).getVersion();
+		String key = query.toString();
+		SearchResult sr = cache.get(this, version, key);
+		if (sr != null) {
+			StageMetrics.increment("result_cache_hit", getCode());
+			return sr;
+		}
+		StageMetrics.increment("result_cache_miss", getCode());
+		sr = search(query, newSearcher(reader));
+		cache.put(this, version, key, sr);
+		return sr;
+	}
+	
+	
+	
+	/**
+	 * Create an IndexSearcher over reader that applies correct
+	 * ranking according to engine configuration.
+	 * 
+	 * Searchers are cheap to create, so every search gets
+	 * its own and a shared reader can be searched with
+	 * different rankings at the same time.
+	 * 
+	 * Return IndexSearcher.
+	 */
+	public IndexSearcher newSearcher(IndexReader reader) {
+		IndexSearcher searcher;
+		if (searchExecutor == null) {
+			searcher = new IndexSearcher(reader);
+		} else {
+			// slices are made on the first search
+			// that uses the executor
+			int perSlice = segmentsPerSlice;
+			searcher = new IndexSearcher(reader, searchExecutor) {
+				protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+					return Engine.getSlices(leaves, perSlice);
+				}
+			};
+		}
+		searcher.setSimilarity(engineConfig.similarity);
+		return searcher;
+	}
+	
+	
+	
+	/**
+	 * Group segments into slices of up to perSlice
+	 * consecutive segments, or one slice per segment
+	 * if perSlice is not positive.
+	 * 
+	 * Return slices.
+	 */
+	static IndexSearcher.LeafSlice[] getSlices(List<LeafReaderContext> leaves, int perSlice) {
+		int size = perSlice > 0 ? perSlice : 1;
+		IndexSearcher.LeafSlice[] slices = new IndexSearcher.LeafSlice[(leaves.size() + size - 1) / size];
+		for (int i = 0; i < slices.length; i++) {
+			// a copy, as LeafSlice sorts the list it is given
+			slices[i] = new IndexSearcher.LeafSlice(new ArrayList<LeafReaderContext>(
+					leaves.subList(i * size, Math.min(leaves.size(), (i + 1) * size))));
+		}
+		return slices;
+	}
+	
+	
+	
+	/**
+	 * Perform search of Query with IndexSearcher.
+	 * 
+	 * Retrieve top documents up to the result depth.
+	 * 
+	 * Display strings of the results are only built when
+	 * they are read from the SearchResult.
+	 * 
+	 * Return a SearchResult object.
+	 */
+	public SearchResult search(Query query, IndexSearcher searcher) throws IOException {
 		
-		List<String> stringResults = new LinkedList<String>();
-		List<Integer> integerResults = new LinkedList<Integer>();		
-		
-		IndexReader reader = DirectoryReader.open(directory);
-		IndexSearcher searcher = new IndexSearcher(reader);
-		
-		// apply ranking
-		if (ranking == 1) {
-			searcher.setSimilarity(new ClassicSimilarity());		
+		long start = System.nanoTime();
+		ScoreDoc[] scoredDocs;
+		if (scoreOnly) {
+			// top results by score, equal scores in index order;
+			// matches are only counted up to the depth, so
+			// blocks of documents scoring too low are skipped
+			scoredDocs = searcher.search(query, new TopScoreDocCollectorManager(
+					resultDepth, null, resultDepth)).scoreDocs;
 		} else {
-			searcher.setSimilarity(new BM25Similarity());
+			// take top documents up to result depth,
+			// equal scores in collection order
+			scoredDocs = getScoredDocs(searcher.search(query, resultDepth, RANK_ORDER));
 		}
+		StageMetrics.record(StageMetrics.SEARCH, getCode(), start);
+		return getSearchResult(query, scoredDocs, searcher.getIndexReader());
+	}
+	
+	
+	
+	/**
+	 * Return the hits of a search ranked in RANK_ORDER,
+	 * with their scores copied from their sort values,
+	 * where collectors keep them.
+	 */
+	static ScoreDoc[] getScoredDocs(TopDocs topDocs) {
+		for (ScoreDoc scoredDoc : topDocs.scoreDocs) {
+			scoredDoc.score = (Float) ((FieldDoc) scoredDoc).fields[0];
+		}
+		return topDocs.scoreDocs;
+	}
+	
+	
+	
+	/**
+	 * Read the titles and relevance judgments of the top
+	 * documents found by a search of Query in reader.
+	 * 
+	 * Return a SearchResult object.
+	 */
+	private SearchResult getSearchResult(Query query, ScoreDoc[] scoredDocs,
+			IndexReader reader) throws IOException {
 		
-		// take 1000 top documents
-		TopDocs topDocs = searcher.search(query, 1000);
-		ScoreDoc[] scoredDocs = topDocs.scoreDocs;
+		int totalRet = 0;
+		int relevantRet = 0;
+		long start = System.nanoTime();
+		
+		String[] titles = new String[scoredDocs.length];
+		float[] scores = new float[scoredDocs.length];
+		BitSet relevances = new BitSet(scoredDocs.length);
+		BitSet judged = new BitSet(scoredDocs.length);
+		
+		// relevance judgments of all hits come from one column,
+		// whose iterator only moves forward, so hits are read
+		// in document order: document and rank of every hit
+		long[] byDoc = new long[scoredDocs.length];
+		for (int i = 0; i < scoredDocs.length; i++) {
+			byDoc[i] = (long) scoredDocs[i].doc << 32 | i;
+		}
+		Arrays.sort(byDoc);
+		NumericDocValues relevance = MultiDocValues.getNumericValues(reader, "relevance");
+		StoredFields storedFields = reader.storedFields();
 		
-		// save results to variables
-		for (ScoreDoc sDoc : scoredDocs) {
-			Document doc = searcher.doc(sDoc.doc);
+		// save results to variables,
+		// reading only the stored fields needed for them
+		for (long hit : byDoc) {
+			int doc = (int) (hit >>> 32);
+			int i = (int) hit;
+			titles[i] = storedFields.document(doc, HIT_FIELDS).get("title");
+			scores[i] = scoredDocs[i].score;
 			totalRet++;
-			if (doc.get("relevance").equals("true")) {
-                relevantRet++;
-                integerResults.add(1);
-                stringResults.add("+ " + doc.get("title") + " | relevant: " + doc.get("relevance") + " | score: " + sDoc.score);
-            } else {
-            	integerResults.add(0);
-                stringResults.add("- " + doc.get("title") + " | relevant: " + doc.get("relevance") + " | score: " + sDoc.score);
-            }
+			long judgment = relevance != null && relevance.advanceExact(doc) ? relevance.longValue() : -1;
+			if (judgment == 1) {
+				relevantRet++;
+				relevances.set(i);
+			}
+			if (judgment >= 0) {
+				judged.set(i);
+			}
 		}
+		StageMetrics.record(StageMetrics.FETCH, getCode(), start);
 		
 		// create a SearchRelut object
 		// populated with obtained data
@@ -198,8 +967,13 @@ public class Engine {
 				relevantDocs,
 				totalRet,
 				relevantRet,
-				stringResults,
-				integerResults);
+				titles,
+				scores,
+				relevances,
+				judgedDocs,
+				judged);
+		sr.code = getCode();
+		sr.rankingName = engineConfig.similarity.toString();
 		
 		return sr;
 		
@@ -207,29 +981,239 @@ public class Engine {
 
 	
 	
+	/**
+	 * Perform search of a String query in an InvertedIndex,
+	 * ranked by BM25 or TF-IDF according to engine
+	 * configuration.
+	 * 
+	 * Retrieve top documents up to the result depth,
+	 * equal scores in collection order.
+	 * 
+	 * The query is a list of terms; queries with
+	 * QueryParser syntax are rejected.
+	 * 
+	 * Return a SearchResult object.
+	 */
+	public SearchResult search(String query, InvertedIndex index) throws IOException {
+		
+		if (InvertedIndex.hasQuerySyntax(query)) {
+			throw new IllegalArgumentException("query syntax not supported by the native index: " + query);
+		}
+		long start = System.nanoTime();
+		StringBuilder description = new StringBuilder();
+		int[] queryTerms = index.getQueryTerms(query, description);
+		StageMetrics.record(StageMetrics.PARSE, getCode(), start);
+		
+		start = System.nanoTime();
+		float[] allScores;
+		if (engineConfig.similarity instanceof BM25Similarity) {
+			BM25Similarity bm25 = (BM25Similarity) engineConfig.similarity;
+			allScores = index.scoreBM25(queryTerms, bm25.getK1(), bm25.getB());
+		} else if (engineConfig.similarity instanceof ClassicSimilarity) {
+			allScores = index.scoreTFIDF(queryTerms);
+		} else {
+			throw new IllegalArgumentException("no native ranking for " + engineConfig.similarity);
+		}
+		int[] top = InvertedIndex.topDocs(allScores, resultDepth);
+		StageMetrics.record(StageMetrics.SEARCH, getCode(), start);
+		
+		start = System.nanoTime();
+		int relevantRet = 0;
+		String[] titles = new String[top.length];
+		float[] scores = new float[top.length];
+		BitSet relevances = new BitSet(top.length);
+		BitSet judged = new BitSet(top.length);
+		for (int i = 0; i < top.length; i++) {
+			titles[i] = index.getTitle(top[i]);
+			scores[i] = allScores[top[i]];
+			int judgment = index.getRelevance(top[i]);
+			if (judgment == 1) {
+				relevantRet++;
+				relevances.set(i);
+			}
+			if (judgment >= 0) {
+				judged.set(i);
+			}
+		}
+		StageMetrics.record(StageMetrics.FETCH, getCode(), start);
+		
+		SearchResult sr = new SearchResult(ranking, stemmer, stopwords,
+				description.toString(), totalDocs, relevantDocs,
+				top.length, relevantRet, titles, scores,
+				relevances, judgedDocs, judged);
+		sr.code = getCode();
+		sr.rankingName = engineConfig.similarity.toString();
+		return sr;
+	}
+	
+	
+	
+	/**
+	 * Perform search of Query in all shards of a ShardedIndex,
+	 * in parallel.
+	 * 
+	 * Retrieve top documents up to the result depth,
+	 * equal scores in collection order.
+	 * 
+	 * Return a SearchResult object.
+	 */
+	public SearchResult search(Query query, ShardedIndex index) throws IOException {
+		long start = System.nanoTime();
+		TopDocs topDocs = index.search(query, resultDepth, engineConfig.similarity);
+		StageMetrics.record(StageMetrics.SEARCH, getCode(), start);
+		return getSearchResult(query, getScoredDocs(topDocs), index.getReader());
+	}
+	
+	
+	
 	/**
 	 * Main helper function.
 	 * 
 	 * Performs all required engine actions to find search results
 	 * given String Query in DocumentInCollection List.
 	 * 
+	 * Indexes the collection for every call, unless index
+	 * reuse is enabled.
+	 * 
 	 * Returns a SearchResult object.
 	 */
 	public SearchResult doSearch(String originalQuery, List<DocumentInCollection> dics) throws Exception {
+		return doSearch(originalQuery, CollectionSource.of(dics));
+	}
+	
+	
+	
+	/**
+	 * Same as doSearch over a DocumentInCollection List,
+	 * but the documents are streamed from the collection
+	 * file at uri straight into the index.
+	 * 
+	 * Returns a SearchResult object.
+	 */
+	public SearchResult doSearch(String originalQuery, String uri) throws Exception {
+		return doSearch(originalQuery, CollectionSource.stream(uri));
+	}
+	
+	
+	
+	/**
+	 * Search for many queries in the index for this engine's
+	 * analyzer configuration, taken from the IndexRegistry.
+	 * 
+	 * All queries share one reader, each searched with a
+	 * searcher of its own, and run on a pool of the given
+	 * number of threads. Results are handed to the consumer
+	 * on the calling thread, in query order, with the index
+	 * of their query, as soon as they are available. Only
+	 * a few queries per thread are searched ahead of the
+	 * consumer, so results are not all held at once.
+	 * 
+	 * A query that fails is reported and skipped.
+	 */
+	public void doSearchAll(List<String> queries, List<DocumentInCollection> dics,
+			int threads, ObjIntConsumer<SearchResult> consumer) throws Exception {
+		
+		IndexRegistry.Entry entry = IndexRegistry.get(this, CollectionSource.of(dics));
+		totalDocs = entry.totalDocs;
+		relevantDocs = entry.relevantDocs;
+		judgedDocs = entry.judgedDocs;
+		Analyzer analyzer = getAnalyzer();
+		
+		IndexSearcher acquired = entry.searcherManager.acquire();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			IndexReader reader = acquired.getIndexReader();
+			Deque<Future<SearchResult>> pending = new ArrayDeque<Future<SearchResult>>();
+			Iterator<String> submitted = queries.iterator();
+			Iterator<String> consumed = queries.iterator();
+			for (int i = 0; consumed.hasNext(); i++) {
+				String query = consumed.next();
+				while (submitted.hasNext() && pending.size() < SEARCH_AHEAD * threads) {
+					String originalQuery = submitted.next();
+					pending.add(pool.submit(() ->
+							cachedSearch(getCachedQuery(originalQuery, analyzer), reader)));
+				}
+				try {
+					consumer.accept(pending.remove().get(), i);
+				} catch (ExecutionException e) {
+					System.err.println("Search failed for query " + (i + 1) + ": " + query);
+					e.getCause().printStackTrace();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			entry.searcherManager.release(acquired);
+		}
+	}
+	
+	
+	
+	/**
+	 * Same as doSearch over a DocumentInCollection List,
+	 * but over any CollectionSource.
+	 * 
+	 * Returns a SearchResult object.
+	 */
+	public SearchResult doSearch(String originalQuery, CollectionSource source) throws Exception {
 		Analyzer analyzer = getAnalyzer();
-		IndexWriterConfig config = getConfig(analyzer);
-		Directory directory = getDirectory(config, dics);
-		Query query = getQuery(originalQuery, analyzer);
-		SearchResult sr = search(query, directory);
+		SearchResult sr;
+		if (nativeIndex) {
+			InvertedIndex index = InvertedIndex.get(this, source);
+			totalDocs = index.totalDocs;
+			relevantDocs = index.relevantDocs;
+			judgedDocs = index.judgedDocs;
+			sr = search(originalQuery, index);
+		} else if (shards > 1) {
+			ShardedIndex index = ShardedIndex.get(this, shards, source);
+			totalDocs = index.totalDocs;
+			relevantDocs = index.relevantDocs;
+			judgedDocs = index.judgedDocs;
+			sr = search(getCachedQuery(originalQuery, analyzer), index);
+		} else if (reuseIndex) {
+			IndexRegistry.Entry entry = IndexRegistry.get(this, source);
+			totalDocs = entry.totalDocs;
+			relevantDocs = entry.relevantDocs;
+			judgedDocs = entry.judgedDocs;
+			Query query = getCachedQuery(originalQuery, analyzer);
+			sr = search(query, entry.searcherManager);
+		} else {
+			Directory directory = buildDirectory(source);
+			Query query = getQuery(originalQuery, analyzer);
+			sr = search(query, directory);
+			directory.close();
+		}
 		//System.out.println("Original query: " + originalQuery);
 		//System.out.println("Total: " + totalDocs);
 		//System.out.println("Relevant: " + relevantDocs);
-		//System.out.println("Total retrieved: " + totalRet);
-		//System.out.println("Relevant retrieved: " + relevantRet);
-		//System.out.println("Recall = " + ((float)relevantRet / relevantDocs));
-		//System.out.println("Precision = " + ((float)relevantRet / totalRet));
+		//System.out.println("Total retrieved: " + sr.totalRetrieved);
+		//System.out.println("Relevant retrieved: " + sr.relevantRetrieved);
+		//System.out.println("Recall = " + ((float)sr.relevantRetrieved / relevantDocs));
+		//System.out.println("Precision = " + ((float)sr.relevantRetrieved / sr.totalRetrieved));
 		//printResults(sr.stringResults);
 		return sr;
 	}
 	
+	
+	
+	/**
+	 * Create a Directory from a CollectionSource, streamed
+	 * into the index if the source is streamed. A persistent
+	 * index that is current is opened without reading the
+	 * source.
+	 */
+	Directory buildDirectory(CollectionSource source) throws IOException {
+		long start = System.nanoTime();
+		IndexWriterConfig config = getConfig(getAnalyzer());
+		Directory directory;
+		if (indexPath != null) {
+			directory = getPersistentDirectory(config, source);
+		} else if (source.isStreamed()) {
+			directory = getDirectory(config, source.getUri());
+		} else {
+			directory = getDirectory(config, source.getDocuments());
+		}
+		StageMetrics.record(StageMetrics.INDEX, getCode(), start);
+		return directory;
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+package ir_course;
+
+import org.apache.lucene.search.similarities.AfterEffectB;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.BasicModelIn;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.DFRSimilarity;
+import org.apache.lucene.search.similarities.DistributionLL;
+import org.apache.lucene.search.similarities.IBSimilarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.LambdaDF;
+import org.apache.lucene.search.similarities.NormalizationH2;
+import org.apache.lucene.search.similarities.Similarity;
+
+
+
+/**
+ * Configuration of an Engine: the ranking Similarity,
+ * and the stemmer and stop words of its analyzer.
+ *
+ * All similarities here encode document length norms
+ * the same way, so engines that differ only in ranking
+ * search the same index, and any number of ranking
+ * models can be compared over one index.
+ */
+public class EngineConfig {
+
+	// names the configuration in results and metrics
+	final String code;
+	final Similarity similarity;
+	final boolean stemmer;
+	final boolean stopwords;
+
+
+
+	/**
+	 * Constructor. The code names the configuration in
+	 * results and metrics; cached results are told apart
+	 * by the Similarity and its parameters, so a code can
+	 * be reused while sweeping ranking parameters.
+	 */
+	public EngineConfig(String code, Similarity similarity, boolean stemmer, boolean stopwords) {
+		this.code = code;
+		this.similarity = similarity;
+		this.stemmer = stemmer;
+		this.stopwords = stopwords;
+	}
+
+
+
+	/**
+	 * Create the configuration of a predefined code.
+	 *
+	 * First digit = ranking method VSM (1) or BM25 (2)
+	 * Second digit = stemmer on (1) or off (0)
+	 * Third digit = stop words on (1) or off (0)
+	 *
+	 * Return EngineConfig.
+	 */
+	public static EngineConfig fromCode(String code) {
+		int ranking = Integer.parseInt(code.charAt(0)+"");
+		return new EngineConfig(code,
+				ranking == 1 ? vsm() : bm25(1.2f, 0.75f),
+				code.charAt(1) == '1',
+				code.charAt(2) == '1');
+	}
+
+
+
+	/**
+	 * Return the ranking method of the Similarity, VSM (1)
+	 * or BM25 (2), or 0 for other similarities, whatever
+	 * the code.
+	 */
+	int getRanking() {
+		if (similarity instanceof ClassicSimilarity) {
+			return 1;
+		} else if (similarity instanceof BM25Similarity) {
+			return 2;
+		}
+		return 0;
+	}
+
+
+
+	/**
+	 * Vector space model with TF-IDF weights.
+	 */
+	public static Similarity vsm() {
+		return new ClassicSimilarity();
+	}
+
+	/**
+	 * BM25 with term frequency saturation k1
+	 * and length normalization b.
+	 */
+	public static Similarity bm25(float k1, float b) {
+		return new BM25Similarity(k1, b);
+	}
+
+	/**
+	 * Language model with Dirichlet smoothing.
+	 */
+	public static Similarity lmDirichlet(float mu) {
+		return new LMDirichletSimilarity(mu);
+	}
+
+	/**
+	 * Language model with Jelinek-Mercer smoothing.
+	 */
+	public static Similarity lmJelinekMercer(float lambda) {
+		return new LMJelinekMercerSimilarity(lambda);
+	}
+
+	/**
+	 * Divergence from randomness, I(n)B2.
+	 */
+	public static Similarity dfr() {
+		return new DFRSimilarity(new BasicModelIn(), new AfterEffectB(), new NormalizationH2());
+	}
+
+	/**
+	 * Information-based model, log-logistic with
+	 * document frequency lambda.
+	 */
+	public static Similarity ib() {
+		return new IBSimilarity(new DistributionLL(), new LambdaDF(), new NormalizationH2());
+	}
+
+}
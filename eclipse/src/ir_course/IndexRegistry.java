@@ -0,0 +1,403 @@
+package ir_course;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+
+
+
+/**
+ * Keeps analyzed indexes built by Engine objects, so that
+ * every query and both ranking methods can share them.
+ *
+ * Indexes are keyed by analyzer configuration (stemmer and
+ * stop words), and can be updated in place with changed
+ * documents. Ranking only affects the Similarity used at
+ * search time, so VSM and BM25 engines use the same index.
+ */
+public class IndexRegistry {
+
+
+
+	/**
+	 * An index built once for one analyzer configuration,
+	 * together with document counts recorded while indexing,
+	 * the writer of its updates, and a manager of near
+	 * real-time searchers over that writer shared by all
+	 * searches.
+	 */
+	static class Entry {
+		Directory directory;
+		IndexWriter writer;
+		SearcherManager searcherManager;
+		// only persistent indexes commit their updates,
+		// others are discarded on close
+		boolean persistent;
+		int totalDocs;
+		int relevantDocs;
+		int judgedDocs;
+		CollectionSource source;
+		String key;
+		// judgment and position of every document by key,
+		// read from the index before its first update
+		Map<String, int[]> documents;
+		DocumentKeys documentKeys;
+		int nextPosition;
+	}
+
+	// stored fields read to find documents by key
+	static final Set<String> KEY_FIELDS = Collections.singleton("key");
+
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// indexes for different analyzer configurations
+	// are built at the same time
+	private static final Map<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+
+
+	/**
+	 * Return the index for the analyzer configuration of
+	 * the given engine, building it on first use from the
+	 * source.
+	 *
+	 * An index built from a different source is replaced,
+	 * unless neither source is streamed; then only the
+	 * changes are applied to it.
+	 */
+	public static Entry get(Engine engine,
+			CollectionSource source) throws IOException {
+
+		String key = engine.getAnalyzerKey();
+		synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+			return get(engine, source, key);
+		}
+	}
+
+	private static Entry get(Engine engine, CollectionSource source,
+			String key) throws IOException {
+
+		Entry entry = entries.get(key);
+		if (entry != null && entry.source.equals(source)) {
+			return entry;
+		}
+		if (entry != null && !entry.source.isStreamed() && !source.isStreamed()) {
+			sync(engine, entry, source);
+			return entry;
+		}
+		if (entry != null) {
+			close(entry);
+		}
+
+		// the engine keeps counting documents across indexes,
+		// so record only what was counted for this one
+		int totalBefore = engine.totalDocs;
+		int relevantBefore = engine.relevantDocs;
+		int judgedBefore = engine.judgedDocs;
+		entry = new Entry();
+		entry.directory = engine.buildDirectory(source);
+		IndexWriterConfig config = engine.getConfig(engine.getAnalyzer());
+		config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+		if (engine.segments > 0) {
+			// keep the balanced segments for sliced searches
+			config.setMergePolicy(NoMergePolicy.INSTANCE);
+		}
+		entry.writer = new IndexWriter(entry.directory, config);
+		entry.persistent = engine.indexPath != null;
+		entry.searcherManager = new SearcherManager(entry.writer, null);
+		entry.searcherManager.addListener(new ReferenceManager.RefreshListener() {
+			public void beforeRefresh() {
+			}
+			public void afterRefresh(boolean didRefresh) {
+				if (didRefresh) {
+					invalidateResults(key);
+				}
+			}
+		});
+		entry.totalDocs = engine.totalDocs - totalBefore;
+		entry.relevantDocs = engine.relevantDocs - relevantBefore;
+		entry.judgedDocs = engine.judgedDocs - judgedBefore;
+		entry.source = source;
+		entry.key = key;
+		entries.put(key, entry);
+		return entry;
+	}
+
+
+
+	/**
+	 * Bring the index for the analyzer configuration of the
+	 * given engine up to date with a changed collection.
+	 *
+	 * Documents new in the collection are added, documents
+	 * with changed relevance judgments are updated, and
+	 * documents no longer in the collection are deleted.
+	 * Added documents come after all others in collection
+	 * order. Later searches see the changes. Deleted
+	 * documents count in term statistics until they are
+	 * merged away, so scores can differ slightly from
+	 * those of a rebuilt index.
+	 */
+	public static void sync(Engine engine,
+			List<DocumentInCollection> dics) throws IOException {
+
+		String key = engine.getAnalyzerKey();
+		CollectionSource source = CollectionSource.of(dics);
+		synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				get(engine, source, key);
+			} else if (!entry.source.equals(source)) {
+				sync(engine, entry, source);
+			}
+		}
+	}
+
+	private static void sync(Engine engine, Entry entry,
+			CollectionSource source) throws IOException {
+
+		List<DocumentInCollection> dics = source.getDocuments();
+		Map<String, int[]> documents = getDocuments(entry);
+		DocumentKeys numbering = new DocumentKeys();
+		Set<String> keys = new HashSet<String>();
+		List<DocumentInCollection> changed = new ArrayList<DocumentInCollection>();
+		List<String> changedKeys = new ArrayList<String>();
+		for (DocumentInCollection dic : dics) {
+			String documentKey = numbering.next(dic);
+			keys.add(documentKey);
+			int[] document = documents.get(documentKey);
+			if (document == null || document[0] != Engine.getJudgment(dic)) {
+				changed.add(dic);
+				changedKeys.add(documentKey);
+			}
+		}
+		List<String> deleted = new ArrayList<String>();
+		for (String documentKey : documents.keySet()) {
+			if (!keys.contains(documentKey)) {
+				deleted.add(documentKey);
+			}
+		}
+
+		apply(engine, entry, changed, changedKeys, deleted, Engine.getFingerprint(source));
+		entry.source = source;
+	}
+
+
+
+	/**
+	 * Apply a delta to the index for the analyzer configuration
+	 * of the given engine: add new documents, replace the
+	 * documents with the keys of updated ones, and delete
+	 * the documents with the given keys.
+	 *
+	 * New documents are always added, even if the same
+	 * title and abstract are already indexed: they are
+	 * numbered after all indexed documents with the same
+	 * content. Later searches see the changes.
+	 *
+	 * Throws IllegalArgumentException, before any change,
+	 * if an updated key is not in the index.
+	 */
+	public static void update(Engine engine, List<DocumentInCollection> added,
+			Map<String, DocumentInCollection> updated,
+			Collection<String> deletedKeys) throws IOException {
+
+		String key = engine.getAnalyzerKey();
+		synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				throw new IllegalStateException("no index for analyzer configuration " + key);
+			}
+			Map<String, int[]> documents = getDocuments(entry);
+			for (String documentKey : updated.keySet()) {
+				if (!documents.containsKey(documentKey)) {
+					throw new IllegalArgumentException("no document with key " + documentKey);
+				}
+			}
+			List<DocumentInCollection> dics = new ArrayList<DocumentInCollection>(updated.values());
+			List<String> keys = new ArrayList<String>(updated.keySet());
+			for (DocumentInCollection dic : added) {
+				dics.add(dic);
+				keys.add(entry.documentKeys.next(dic));
+			}
+			// the indexed collection is no longer known, so a
+			// persistent index is rebuilt by the next run
+			apply(engine, entry, dics, keys, deletedKeys, "");
+		}
+	}
+
+
+
+	/**
+	 * Write documents and deletions to the index, and
+	 * refresh its searchers from the writer. A persistent
+	 * index also commits them, with the new document counts.
+	 */
+	private static void apply(Engine engine, Entry entry, List<DocumentInCollection> dics,
+			List<String> keys, Collection<String> deletedKeys, String fingerprint) throws IOException {
+
+		long start = System.nanoTime();
+		Map<String, int[]> documents = getDocuments(entry);
+		IndexWriter writer = entry.writer;
+		Iterator<String> keyIterator = keys.iterator();
+		for (DocumentInCollection dic : dics) {
+			String documentKey = keyIterator.next();
+			int judgment = Engine.getJudgment(dic);
+			int[] document = documents.get(documentKey);
+			if (document == null) {
+				document = new int[] {judgment, entry.nextPosition++};
+				writer.addDocument(engine.getDocument(dic, document[1], documentKey));
+				documents.put(documentKey, document);
+				entry.documentKeys.add(documentKey);
+			} else {
+				writer.updateDocument(new Term("key", documentKey),
+						engine.getDocument(dic, document[1], documentKey));
+				count(entry, document[0], -1);
+				document[0] = judgment;
+			}
+			count(entry, judgment, 1);
+		}
+		for (String documentKey : deletedKeys) {
+			int[] document = documents.remove(documentKey);
+			if (document != null) {
+				writer.deleteDocuments(new Term("key", documentKey));
+				count(entry, document[0], -1);
+			}
+		}
+		if (entry.persistent) {
+			Engine.setCommitData(writer, fingerprint,
+					entry.totalDocs, entry.relevantDocs, entry.judgedDocs);
+			writer.commit();
+		}
+		entry.searcherManager.maybeRefresh();
+		StageMetrics.record(StageMetrics.UPDATE, engine.getCode(), start);
+	}
+
+	private static void count(Entry entry, int judgment, int documents) {
+		entry.totalDocs += documents;
+		if (judgment == 1) entry.relevantDocs += documents;
+		if (judgment >= 0) entry.judgedDocs += documents;
+	}
+
+
+
+	/**
+	 * Return the judgment and position of every document
+	 * in the index by key, read from the index on first use.
+	 */
+	private static Map<String, int[]> getDocuments(Entry entry) throws IOException {
+		if (entry.documents != null) {
+			return entry.documents;
+		}
+		Map<String, int[]> documents = new HashMap<String, int[]>();
+		DocumentKeys documentKeys = new DocumentKeys();
+		int nextPosition = 0;
+		IndexSearcher searcher = entry.searcherManager.acquire();
+		try {
+			for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+				LeafReader reader = context.reader();
+				Bits liveDocs = reader.getLiveDocs();
+				NumericDocValues relevance = DocValues.getNumeric(reader, "relevance");
+				NumericDocValues position = DocValues.getNumeric(reader, "position");
+				StoredFields storedFields = reader.storedFields();
+				for (int doc = 0; doc < reader.maxDoc(); doc++) {
+					if (liveDocs != null && !liveDocs.get(doc)) {
+						continue;
+					}
+					// every document has both columns
+					relevance.advanceExact(doc);
+					position.advanceExact(doc);
+					String documentKey = storedFields.document(doc, KEY_FIELDS).get("key");
+					documents.put(documentKey, new int[] {(int) relevance.longValue(), (int) position.longValue()});
+					documentKeys.add(documentKey);
+					nextPosition = Math.max(nextPosition, (int) position.longValue() + 1);
+				}
+			}
+		} finally {
+			entry.searcherManager.release(searcher);
+		}
+		entry.documents = documents;
+		entry.documentKeys = documentKeys;
+		entry.nextPosition = nextPosition;
+		return documents;
+	}
+
+
+
+	/**
+	 * Make later searches of the index for the analyzer
+	 * configuration of the given engine see changes
+	 * written by its writer since they were opened.
+	 *
+	 * Searches already running keep their reader. Cached
+	 * results of the index are invalidated if it changed.
+	 */
+	public static void refresh(Engine engine) throws IOException {
+		Entry entry = entries.get(engine.getAnalyzerKey());
+		if (entry != null) {
+			entry.searcherManager.maybeRefresh();
+		}
+	}
+
+
+
+	/**
+	 * Close and forget all registered indexes.
+	 */
+	public static void clear() throws IOException {
+		for (String key : entries.keySet()) {
+			synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+				Entry entry = entries.remove(key);
+				if (entry != null) {
+					close(entry);
+				}
+			}
+		}
+	}
+
+
+
+	private static void close(Entry entry) throws IOException {
+		// a new index may have the same version as the old one
+		invalidateResults(entry.key);
+		entry.searcherManager.close();
+		if (entry.persistent) {
+			entry.writer.close();
+		} else {
+			// nothing to keep in an index that is dropped
+			entry.writer.rollback();
+		}
+		entry.directory.close();
+	}
+
+	private static void invalidateResults(String key) {
+		ResultCache cache = Engine.resultCache;
+		if (cache != null) {
+			cache.invalidate(key);
+		}
+	}
+
+}
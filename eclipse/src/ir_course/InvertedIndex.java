@@ -0,0 +1,468 @@
+package ir_course;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.SmallFloat;
+
+
+
+/**
+ * An in-memory inverted index of the abstracts of a document
+ * collection, an alternative to a Lucene index for small
+ * collections of short documents.
+ *
+ * Terms are analyzed with the analyzers of Engine and get
+ * integer ids. The postings of a term are document id
+ * deltas and term frequencies, varint encoded in one byte
+ * array for all terms. Searches score one term at a time
+ * into an array of document scores, with BM25 or TF-IDF
+ * as in Lucene, without boxing or per-hit objects.
+ *
+ * Document lengths are rounded to the one byte norms of
+ * Lucene when scoring. Queries are scored as flat lists of
+ * analyzed terms, as QueryParser parses queries of plain
+ * terms, so scores equal those of Lucene. Query syntax
+ * (phrases, required or excluded terms, fuzzy and wildcard
+ * terms, fields, groups and boolean operators) is not
+ * supported, see hasQuerySyntax.
+ */
+public class InvertedIndex {
+
+	// term ids
+	private final Map<String, Integer> terms = new HashMap<String, Integer>();
+
+	// postings of term id t are postings[postingStarts[t]
+	// until postingStarts[t + 1]]
+	private byte[] postings;
+	private int[] postingStarts;
+	private int[] docFreqs;
+
+	// per document, by position in the collection
+	private final int[] lengths;
+	private final String[] titles;
+	private final byte[] relevance;
+	private final long totalLength;
+	private final int docCount;
+
+	final Analyzer analyzer;
+	int totalDocs;
+	int relevantDocs;
+	int judgedDocs;
+
+	// QueryParser syntax: operators at the start of a word,
+	// special characters, and boolean operator words
+	private static final Pattern QUERY_SYNTAX = Pattern.compile(
+			"(^|\\s)[-+!]|[\"~^*?:()\\[\\]{}\\\\/]|&&|\\|\\||\\b(AND|OR|NOT)\\b");
+
+	// indexes by analyzer configuration, with their collections
+	private static final Map<String, InvertedIndex> indexes = new HashMap<String, InvertedIndex>();
+	private static final Map<String, CollectionSource> sources = new HashMap<String, CollectionSource>();
+
+
+
+	/**
+	 * Constructor indexes a collection of documents
+	 * with the given Analyzer.
+	 */
+	public InvertedIndex(List<DocumentInCollection> dics, Analyzer analyzer) throws IOException {
+		this.analyzer = analyzer;
+		int n = dics.size();
+		lengths = new int[n];
+		titles = new String[n];
+		relevance = new byte[n];
+
+		// postings of every term while indexing, and
+		// the last document added to them
+		List<byte[]> buffers = new ArrayList<byte[]>();
+		int[] bufferLengths = new int[16];
+		int[] lastDocs = new int[16];
+		int[] freqs = new int[16];
+		long total = 0;
+		int withTerms = 0;
+
+		int[] docTerms = new int[64];
+		int doc = 0;
+		for (DocumentInCollection dic : dics) {
+			titles[doc] = dic.getTitle();
+			if (dic.getSearchTaskNumber() == 5) {
+				relevance[doc] = (byte) (dic.isRelevant() ? 1 : 0);
+				judgedDocs++;
+				if (dic.isRelevant()) relevantDocs++;
+			} else {
+				relevance[doc] = -1;
+			}
+			totalDocs++;
+
+			// term ids of the document, sorted so that
+			// equal terms form runs
+			int length = 0;
+			try (TokenStream stream = analyzer.tokenStream("abstract_text", dic.getAbstractText())) {
+				CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+				stream.reset();
+				while (stream.incrementToken()) {
+					String text = term.toString();
+					Integer id = terms.get(text);
+					if (id == null) {
+						id = terms.size();
+						terms.put(text, id);
+						buffers.add(new byte[8]);
+						if (id == lastDocs.length) {
+							bufferLengths = Arrays.copyOf(bufferLengths, id * 2);
+							lastDocs = Arrays.copyOf(lastDocs, id * 2);
+							freqs = Arrays.copyOf(freqs, id * 2);
+						}
+					}
+					if (length == docTerms.length) {
+						docTerms = Arrays.copyOf(docTerms, length * 2);
+					}
+					docTerms[length++] = id;
+				}
+				stream.end();
+			}
+			lengths[doc] = length;
+			total += length;
+			if (length > 0) withTerms++;
+			Arrays.sort(docTerms, 0, length);
+
+			for (int i = 0; i < length; ) {
+				int id = docTerms[i];
+				int freq = 0;
+				while (i < length && docTerms[i] == id) {
+					freq++;
+					i++;
+				}
+				byte[] buffer = buffers.get(id);
+				if (bufferLengths[id] + 10 > buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2 + 10);
+					buffers.set(id, buffer);
+				}
+				int at = writeVInt(buffer, bufferLengths[id], doc - lastDocs[id]);
+				bufferLengths[id] = writeVInt(buffer, at, freq);
+				lastDocs[id] = doc;
+				freqs[id]++;
+			}
+			doc++;
+		}
+		totalLength = total;
+		docCount = withTerms;
+
+		// all postings in one array
+		int termCount = terms.size();
+		postingStarts = new int[termCount + 1];
+		docFreqs = Arrays.copyOf(freqs, termCount);
+		int size = 0;
+		for (int t = 0; t < termCount; t++) {
+			postingStarts[t] = size;
+			size += bufferLengths[t];
+		}
+		postingStarts[termCount] = size;
+		postings = new byte[size];
+		for (int t = 0; t < termCount; t++) {
+			System.arraycopy(buffers.get(t), 0, postings, postingStarts[t], bufferLengths[t]);
+		}
+	}
+
+
+
+	/**
+	 * Return the index for the analyzer configuration of
+	 * the given engine, built on first use from the source.
+	 * An index of another source is replaced.
+	 */
+	public static synchronized InvertedIndex get(Engine engine,
+			CollectionSource source) throws IOException {
+		String key = engine.getAnalyzerKey();
+		InvertedIndex index = indexes.get(key);
+		if (index == null || !sources.get(key).equals(source)) {
+			long start = System.nanoTime();
+			index = new InvertedIndex(source.getDocuments(), engine.getAnalyzer());
+			StageMetrics.record(StageMetrics.INDEX, engine.getCode() + "-native", start);
+			indexes.put(key, index);
+			sources.put(key, source);
+		}
+		return index;
+	}
+
+
+
+	/**
+	 * Forget all indexes.
+	 */
+	public static synchronized void clear() {
+		indexes.clear();
+		sources.clear();
+	}
+
+
+
+	/**
+	 * Tell whether a query uses QueryParser syntax, which
+	 * a search of the native index would not honor.
+	 */
+	static boolean hasQuerySyntax(String query) {
+		return QUERY_SYNTAX.matcher(query).find();
+	}
+
+
+
+	/**
+	 * Return the ids of the analyzed terms of a query,
+	 * -1 for terms not in the index, which match nothing.
+	 * A term repeated in the query is scored once, with
+	 * its weight multiplied by its count, as a Lucene
+	 * BooleanQuery rewrites repeated clauses.
+	 *
+	 * The analyzed terms are added to description.
+	 */
+	int[] getQueryTerms(String query, StringBuilder description) throws IOException {
+		int[] ids = new int[8];
+		int count = 0;
+		try (TokenStream stream = analyzer.tokenStream("abstract_text", query)) {
+			CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				String text = term.toString();
+				Integer id = terms.get(text);
+				if (count == ids.length) {
+					ids = Arrays.copyOf(ids, count * 2);
+				}
+				ids[count++] = id == null ? -1 : id;
+				description.append(description.length() == 0 ? "" : " ").append("abstract_text:").append(text);
+			}
+			stream.end();
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+
+
+	/**
+	 * Score every document matching any query term with BM25,
+	 * as BM25Similarity of Lucene 9 does.
+	 *
+	 * Return scores by document, 0 for documents that do
+	 * not match.
+	 */
+	float[] scoreBM25(int[] queryTerms, float k1, float b) {
+		int n = lengths.length;
+		double[] sums = new double[n];
+		float averageLength = (float) (totalLength / (double) docCount);
+
+		// the inverse of the length part of BM25 for every document
+		float[] lengthFactors = new float[n];
+		for (int doc = 0; doc < n; doc++) {
+			lengthFactors[doc] = 1f / (k1 * ((1 - b) + b * normLength(doc) / averageLength));
+		}
+
+		// equal terms form runs, counted as their boost
+		int[] sorted = queryTerms.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < sorted.length; ) {
+			int t = sorted[i];
+			int boost = 0;
+			while (i < sorted.length && sorted[i] == t) {
+				boost++;
+				i++;
+			}
+			if (t < 0) {
+				continue;
+			}
+			float idf = (float) Math.log(1 + (docCount - docFreqs[t] + 0.5) / (docFreqs[t] + 0.5));
+			float weight = boost * idf;
+			int at = postingStarts[t];
+			int end = postingStarts[t + 1];
+			int doc = 0;
+			while (at < end) {
+				// read doc delta and frequency varints
+				int delta = 0;
+				for (int shift = 0; ; shift += 7) {
+					byte x = postings[at++];
+					delta |= (x & 0x7F) << shift;
+					if (x >= 0) break;
+				}
+				int freq = 0;
+				for (int shift = 0; ; shift += 7) {
+					byte x = postings[at++];
+					freq |= (x & 0x7F) << shift;
+					if (x >= 0) break;
+				}
+				doc += delta;
+				sums[doc] += weight - weight / (1f + (float) freq * lengthFactors[doc]);
+			}
+		}
+		return toFloats(sums);
+	}
+
+
+
+	/**
+	 * Score every document matching any query term with
+	 * TF-IDF, as ClassicSimilarity of Lucene 9 does.
+	 *
+	 * Return scores by document, 0 for documents that do
+	 * not match.
+	 */
+	float[] scoreTFIDF(int[] queryTerms) {
+		int n = lengths.length;
+		double[] sums = new double[n];
+
+		// equal terms form runs, counted as their boost
+		int[] sorted = queryTerms.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < sorted.length; ) {
+			int t = sorted[i];
+			int boost = 0;
+			while (i < sorted.length && sorted[i] == t) {
+				boost++;
+				i++;
+			}
+			if (t < 0) {
+				continue;
+			}
+			float weight = boost * idf(t);
+			int at = postingStarts[t];
+			int end = postingStarts[t + 1];
+			int doc = 0;
+			while (at < end) {
+				int delta = 0;
+				for (int shift = 0; ; shift += 7) {
+					byte x = postings[at++];
+					delta |= (x & 0x7F) << shift;
+					if (x >= 0) break;
+				}
+				int freq = 0;
+				for (int shift = 0; ; shift += 7) {
+					byte x = postings[at++];
+					freq |= (x & 0x7F) << shift;
+					if (x >= 0) break;
+				}
+				doc += delta;
+				sums[doc] += (float) Math.sqrt(freq) * weight * (float) (1.0 / Math.sqrt(normLength(doc)));
+			}
+		}
+		return toFloats(sums);
+	}
+
+	// clause scores are summed in double precision and
+	// then rounded, as BooleanQuery does, so that scores
+	// equal those of Lucene to the last bit
+	private static float[] toFloats(double[] sums) {
+		float[] scores = new float[sums.length];
+		for (int doc = 0; doc < sums.length; doc++) {
+			scores[doc] = (float) sums[doc];
+		}
+		return scores;
+	}
+
+	// length of a document, rounded to one byte as Lucene norms are
+	private int normLength(int doc) {
+		return SmallFloat.byte4ToInt(SmallFloat.intToByte4(lengths[doc]));
+	}
+
+	// idf of term id t
+	private float idf(int t) {
+		return (float) (Math.log((docCount + 1) / (double) (docFreqs[t] + 1)) + 1.0);
+	}
+
+
+
+	/**
+	 * Return the documents with the highest positive scores,
+	 * at most depth of them, by descending score and then
+	 * by position in the collection.
+	 */
+	static int[] topDocs(float[] scores, int depth) {
+		// a min-heap of the best documents so far,
+		// with the worst one at the root
+		int[] heap = new int[Math.max(depth, 1)];
+		int size = 0;
+		for (int doc = 0; doc < scores.length; doc++) {
+			if (scores[doc] <= 0) {
+				continue;
+			}
+			if (size < depth) {
+				heap[size] = doc;
+				siftUp(heap, size++, scores);
+			} else if (depth > 0 && better(doc, heap[0], scores)) {
+				heap[0] = doc;
+				siftDown(heap, size, scores);
+			}
+		}
+
+		int[] top = new int[size];
+		for (int i = size - 1; i >= 0; i--) {
+			top[i] = heap[0];
+			heap[0] = heap[--size];
+			siftDown(heap, size, scores);
+		}
+		return top;
+	}
+
+	private static boolean better(int a, int b, float[] scores) {
+		return scores[a] > scores[b] || (scores[a] == scores[b] && a < b);
+	}
+
+	private static void siftUp(int[] heap, int i, float[] scores) {
+		int doc = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!better(heap[parent], doc, scores)) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = doc;
+	}
+
+	private static void siftDown(int[] heap, int size, float[] scores) {
+		if (size == 0) {
+			return;
+		}
+		int doc = heap[0];
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && better(heap[child], heap[child + 1], scores)) {
+				child++;
+			}
+			if (!better(doc, heap[child], scores)) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = doc;
+	}
+
+
+
+	String getTitle(int doc) {
+		return titles[doc];
+	}
+
+	int getRelevance(int doc) {
+		return relevance[doc];
+	}
+
+
+
+	private static int writeVInt(byte[] buffer, int at, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer[at++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[at++] = (byte) value;
+		return at;
+	}
+
+}
@@ -0,0 +1,184 @@
+package ir_course;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+
+/**
+ * Computes trec_eval measures of search results.
+ *
+ * All measures of a SearchResult are computed in one pass
+ * over its ranks. Measures of any number of queries can be
+ * averaged, and printed in the trec_eval text format.
+ */
+public class Metrics {
+
+	// rank cutoffs of P, recall and ndcg_cut measures, as in trec_eval
+	static final int[] CUTOFFS = {5, 10, 15, 20, 30, 100, 200, 500, 1000};
+
+	// measures that are summed over queries instead of averaged
+	static final Set<String> COUNTS = new HashSet<String>(
+			Arrays.asList("num_q", "num_ret", "num_rel", "num_rel_ret"));
+
+
+
+	/**
+	 * Computes all measures of one search result:
+	 * map, Rprec, bpref, recip_rank, P, recall and ndcg_cut
+	 * at every cutoff, and ndcg over all ranks.
+	 *
+	 * Relevance is binary. bpref only counts judged
+	 * non-relevant results.
+	 *
+	 * Return measures by trec_eval name, in trec_eval order.
+	 */
+	public static Map<String, Double> evaluate(SearchResult result) {
+
+		BitSet relevances = result.relevances;
+		int retrieved = result.totalRetrieved;
+		int relevantDocuments = result.relevantDocuments;
+		int nonRelevantDocuments = result.judgedDocuments - relevantDocuments;
+
+		double sumPrecisions = 0;
+		double dcg = 0;
+		double bpref = 0;
+		double reciprocalRank = 0;
+		double rPrecision = 0;
+		int relevant = 0;
+		int nonRelevant = 0;
+
+		// relevant results and dcg at every cutoff
+		int[] relevantAt = new int[CUTOFFS.length];
+		double[] dcgAt = new double[CUTOFFS.length];
+		int cutoff = 0;
+
+		for (int i = 0; i < retrieved; i++) {
+			if (relevances.get(i)) {
+				relevant++;
+				sumPrecisions += (double) relevant / (i + 1);
+				dcg += 1 / log2(i + 2);
+				if (reciprocalRank == 0) {
+					reciprocalRank = 1.0 / (i + 1);
+				}
+				if (nonRelevant > 0) {
+					bpref += 1 - (double) Math.min(nonRelevant, relevantDocuments)
+							/ Math.min(relevantDocuments, nonRelevantDocuments);
+				} else {
+					bpref += 1;
+				}
+			} else if (result.isJudged(i)) {
+				nonRelevant++;
+			}
+
+			if (i + 1 == relevantDocuments) {
+				rPrecision = (double) relevant / relevantDocuments;
+			}
+			while (cutoff < CUTOFFS.length && i + 1 == CUTOFFS[cutoff]) {
+				relevantAt[cutoff] = relevant;
+				dcgAt[cutoff] = dcg;
+				cutoff++;
+			}
+		}
+
+		// cutoffs below the last rank count all results
+		for (; cutoff < CUTOFFS.length; cutoff++) {
+			relevantAt[cutoff] = relevant;
+			dcgAt[cutoff] = dcg;
+		}
+		if (retrieved < relevantDocuments) {
+			rPrecision = (double) relevant / relevantDocuments;
+		}
+
+		Map<String, Double> measures = new LinkedHashMap<String, Double>();
+		measures.put("num_ret", (double) retrieved);
+		measures.put("num_rel", (double) relevantDocuments);
+		measures.put("num_rel_ret", (double) relevant);
+		measures.put("map", divide(sumPrecisions, relevantDocuments));
+		measures.put("Rprec", rPrecision);
+		measures.put("bpref", divide(bpref, relevantDocuments));
+		measures.put("recip_rank", reciprocalRank);
+		for (int i = 0; i < CUTOFFS.length; i++) {
+			measures.put("P_" + CUTOFFS[i], (double) relevantAt[i] / CUTOFFS[i]);
+		}
+		for (int i = 0; i < CUTOFFS.length; i++) {
+			measures.put("recall_" + CUTOFFS[i], divide(relevantAt[i], relevantDocuments));
+		}
+		measures.put("ndcg", divide(dcg, idealDcg(relevantDocuments)));
+		for (int i = 0; i < CUTOFFS.length; i++) {
+			double ideal = idealDcg(Math.min(relevantDocuments, CUTOFFS[i]));
+			measures.put("ndcg_cut_" + CUTOFFS[i], divide(dcgAt[i], ideal));
+		}
+		return measures;
+	}
+
+
+
+	/**
+	 * Averages measures of any number of queries.
+	 * Counts are summed, and num_q is added.
+	 *
+	 * Return averaged measures, in the same order.
+	 */
+	public static Map<String, Double> average(List<Map<String, Double>> queries) {
+
+		Map<String, Double> averages = new LinkedHashMap<String, Double>();
+		averages.put("num_q", (double) queries.size());
+		for (Map<String, Double> measures : queries) {
+			for (Map.Entry<String, Double> measure : measures.entrySet()) {
+				Double sum = averages.get(measure.getKey());
+				averages.put(measure.getKey(), (sum == null ? 0 : sum) + measure.getValue());
+			}
+		}
+		for (Map.Entry<String, Double> measure : averages.entrySet()) {
+			if (!COUNTS.contains(measure.getKey())) {
+				measure.setValue(measure.getValue() / queries.size());
+			}
+		}
+		return averages;
+	}
+
+
+
+	/**
+	 * Prints measures of a query, or averages with query id
+	 * "all", in the trec_eval text format.
+	 */
+	public static void write(PrintStream out, String queryId, Map<String, Double> measures) {
+		for (Map.Entry<String, Double> measure : measures.entrySet()) {
+			if (COUNTS.contains(measure.getKey())) {
+				out.println(String.format(Locale.ROOT, "%-22s\t%s\t%d",
+						measure.getKey(), queryId, measure.getValue().longValue()));
+			} else {
+				out.println(String.format(Locale.ROOT, "%-22s\t%s\t%6.4f",
+						measure.getKey(), queryId, measure.getValue()));
+			}
+		}
+	}
+
+
+
+	private static double idealDcg(int relevant) {
+		double ideal = 0;
+		for (int i = 0; i < relevant; i++) {
+			ideal += 1 / log2(i + 2);
+		}
+		return ideal;
+	}
+
+	private static double log2(int x) {
+		return Math.log(x) / Math.log(2);
+	}
+
+	private static double divide(double x, double y) {
+		return y == 0 ? 0 : x / y;
+	}
+
+}
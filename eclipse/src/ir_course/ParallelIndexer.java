@@ -0,0 +1,160 @@
+package ir_course;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+
+
+
+/**
+ * Adds documents to a shared IndexWriter from a pool
+ * of worker threads.
+ *
+ * Documents are collected into batches, and workers take
+ * batches from a bounded queue, so memory use does not grow
+ * with the size of the collection. Documents are not added
+ * in the order they were given.
+ */
+class ParallelIndexer {
+
+	// marks the end of the queue for one worker
+	private static final List<Document> END = new ArrayList<Document>();
+
+	private final IndexWriter writer;
+	private final int threads;
+	private final int batchSize;
+	private final BlockingQueue<List<Document>> queue;
+	private final ExecutorService pool;
+	private List<Document> batch;
+	// first failure of any worker, errors included
+	private volatile Throwable failure;
+
+
+
+	/**
+	 * Constructor starts the worker threads.
+	 */
+	ParallelIndexer(IndexWriter writer, int threads, int batchSize) {
+		this.writer = writer;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<List<Document>>(threads * 2);
+		// daemon threads, so that workers never keep
+		// the JVM alive if the indexer is not closed
+		this.pool = Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "indexer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.batch = new ArrayList<Document>(batchSize);
+		for (int i = 0; i < threads; i++) {
+			pool.execute(this::work);
+		}
+	}
+
+
+
+	/**
+	 * Queue a document for indexing, waiting while all
+	 * workers are busy and the queue is full.
+	 */
+	void add(Document doc) throws IOException {
+		batch.add(doc);
+		if (batch.size() == batchSize) {
+			put(batch);
+			batch = new ArrayList<Document>(batchSize);
+		}
+	}
+
+
+
+	/**
+	 * Index the remaining documents and stop the workers.
+	 * The workers are stopped even if the remaining
+	 * documents cannot be queued.
+	 *
+	 * Throws the first failure of any worker.
+	 */
+	void close() throws IOException {
+		try {
+			if (!batch.isEmpty()) {
+				List<Document> docs = batch;
+				batch = new ArrayList<Document>();
+				put(docs);
+			}
+		} finally {
+			try {
+				for (int i = 0; i < threads; i++) {
+					put(END);
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while indexing");
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+
+
+	private void put(List<Document> docs) throws IOException {
+		try {
+			queue.put(docs);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while indexing");
+		}
+	}
+
+
+
+	/**
+	 * Worker loop. After any failure, an Error such as
+	 * OutOfMemoryError included, the worker keeps taking
+	 * batches without indexing them, so that the producer
+	 * never waits on a full queue.
+	 */
+	private void work() {
+		try {
+			List<Document> docs;
+			while ((docs = queue.take()) != END) {
+				if (failure != null) {
+					continue;
+				}
+				try {
+					writer.addDocuments(docs);
+				} catch (Throwable t) {
+					if (failure == null) {
+						failure = t;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package ir_course;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+/**
+ * Caches search results of shared indexes, so that repeated
+ * queries are not scored again.
+ *
+ * Results are keyed by parsed query, engine code, ranking
+ * Similarity with its parameters, analyzer configuration,
+ * result depth and tie order, and the version of the
+ * searched index, so
+ * engines that share a code but rank differently never
+ * share results.
+ * The least recently used result is evicted when the cache
+ * is full, and results may also expire after a time to live.
+ * IndexRegistry invalidates the results of an index when
+ * it is refreshed or replaced.
+ */
+public class ResultCache {
+
+
+
+	/**
+	 * What a cached result was searched for, and in
+	 * which version of which index.
+	 */
+	private static class Key {
+		final String code;
+		// Similarities describe their parameters
+		final String similarity;
+		final String analyzerKey;
+		final int depth;
+		final boolean scoreOnly;
+		final long version;
+		final String query;
+
+		Key(Engine engine, long version, String query) {
+			this.code = engine.getCode();
+			this.similarity = engine.engineConfig.similarity.toString();
+			this.analyzerKey = engine.getAnalyzerKey();
+			this.depth = engine.resultDepth;
+			this.scoreOnly = engine.scoreOnly;
+			this.version = version;
+			this.query = query;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return depth == other.depth && scoreOnly == other.scoreOnly
+					&& version == other.version && code.equals(other.code)
+					&& similarity.equals(other.similarity) && analyzerKey.equals(other.analyzerKey)
+					&& query.equals(other.query);
+		}
+
+		public int hashCode() {
+			int hash = code.hashCode();
+			hash = 31 * hash + similarity.hashCode();
+			hash = 31 * hash + analyzerKey.hashCode();
+			hash = 31 * hash + depth;
+			hash = 31 * hash + (scoreOnly ? 1 : 0);
+			hash = 31 * hash + Long.hashCode(version);
+			return 31 * hash + query.hashCode();
+		}
+	}
+
+	private static class Cached {
+		final SearchResult result;
+		final long created;
+
+		Cached(SearchResult result) {
+			this.result = result;
+			this.created = System.nanoTime();
+		}
+	}
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final LinkedHashMap<Key, Cached> results;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+
+
+	/**
+	 * Constructor. Results live until they are evicted or
+	 * invalidated if ttlMillis is not positive.
+	 */
+	public ResultCache(int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+		// access order, so the eldest entry is the least recently used
+		this.results = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+				if (size() > ResultCache.this.maxSize) {
+					evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+
+
+	/**
+	 * Return the cached result of a search, or null
+	 * if there is none or it has expired.
+	 */
+	public synchronized SearchResult get(Engine engine, long version, String query) {
+		Key key = new Key(engine, version, query);
+		Cached cached = results.get(key);
+		if (cached != null && ttlNanos > 0 && System.nanoTime() - cached.created > ttlNanos) {
+			results.remove(key);
+			evictions.increment();
+			cached = null;
+		}
+		if (cached == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return cached.result;
+	}
+
+
+
+	/**
+	 * Cache the result of a search.
+	 */
+	public synchronized void put(Engine engine, long version, String query, SearchResult result) {
+		results.put(new Key(engine, version, query), new Cached(result));
+	}
+
+
+
+	/**
+	 * Forget cached results of the index for an
+	 * analyzer configuration.
+	 */
+	public synchronized void invalidate(String analyzerKey) {
+		Iterator<Key> keys = results.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().analyzerKey.equals(analyzerKey)) {
+				keys.remove();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Forget all cached results.
+	 */
+	public synchronized void clear() {
+		results.clear();
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+}
@@ -1,5 +1,7 @@
 package ir_course;
 
+import java.util.AbstractList;
+import java.util.BitSet;
 import java.util.List;
 
 
@@ -17,13 +19,25 @@ public class SearchResult {
 	Integer stopwords;	
 	String query;
 	
+	// code and ranking of the engine configuration,
+	// for rankings other than VSM and BM25
+	String code;
+	String rankingName;
+	
 	int totalDocuments;
 	int relevantDocuments;
 	int totalRetrieved;
 	int relevantRetrieved;
 	
 	List<String> stringResults;
-	List<Integer> relevances;
+	
+	// relevant results by rank, from 0
+	BitSet relevances;
+	
+	// judged results by rank, and judged documents in the
+	// collection; all documents are judged if not known
+	BitSet judged;
+	int judgedDocuments;
 	
 	
 	
@@ -40,17 +54,105 @@ public class SearchResult {
 			int totalRetrieved,
 			int relevantRetrieved,
 			List<String> stringResults,
-			List<Integer> relevances) {
+			BitSet relevances) {
 		this.ranking = ranking;
 		this.stemmer = stemmer;
 		this.stopwords = stopwords;
 		this.query = query;
+		this.code = "" + ranking + stemmer + stopwords;
+		this.rankingName = null;
 		this.totalDocuments = totalDocuments;
 		this.relevantDocuments = relevantDocuments;
 		this.totalRetrieved = totalRetrieved;
 		this.relevantRetrieved = relevantRetrieved;
 		this.stringResults = stringResults;
 		this.relevances = relevances;
+		this.judged = null;
+		this.judgedDocuments = totalDocuments;
+	}
+	
+	
+	
+	/**
+	 * Constructor for results whose display strings are
+	 * built from titles and scores when they are read.
+	 * 
+	 * Reports usually read only the top results, so most
+	 * display strings are never built.
+	 * 
+	 * Also records which results and how many documents
+	 * have relevance judgments.
+	 */
+	public SearchResult(
+			Integer ranking,
+			Integer stemmer,
+			Integer stopwords,
+			String query,
+			int totalDocuments,
+			int relevantDocuments,
+			int totalRetrieved,
+			int relevantRetrieved,
+			String[] titles,
+			float[] scores,
+			BitSet relevances,
+			int judgedDocuments,
+			BitSet judged) {
+		this(ranking, stemmer, stopwords, query,
+				totalDocuments, relevantDocuments, totalRetrieved, relevantRetrieved,
+				null, relevances);
+		this.stringResults = new ResultStrings(titles, scores, relevances);
+		this.judged = judged;
+		this.judgedDocuments = judgedDocuments;
+	}
+	
+	
+	
+	/**
+	 * Tell whether the result at rank i has
+	 * a relevance judgment.
+	 */
+	public boolean isJudged(int i) {
+		return judged == null || judged.get(i);
+	}
+	
+	
+	
+	/**
+	 * A list of display strings of results,
+	 * each built when it is read.
+	 */
+	private class ResultStrings extends AbstractList<String> {
+		
+		private final String[] titles;
+		private final float[] scores;
+		private final BitSet relevances;
+		// the code is set after construction,
+		// so the histogram is looked up on first use
+		private StageMetrics.Histogram formatHistogram;
+		
+		ResultStrings(String[] titles, float[] scores, BitSet relevances) {
+			this.titles = titles;
+			this.scores = scores;
+			this.relevances = relevances;
+		}
+		
+		public String get(int i) {
+			if (i < 0 || i >= titles.length) {
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + titles.length);
+			}
+			long start = System.nanoTime();
+			boolean relevant = relevances.get(i);
+			String result = (relevant ? "+ " : "- ") + titles[i] + " | relevant: " + relevant + " | score: " + scores[i];
+			if (formatHistogram == null) {
+				formatHistogram = StageMetrics.histogram(StageMetrics.FORMAT, code);
+			}
+			formatHistogram.record(System.nanoTime() - start);
+			return result;
+		}
+		
+		public int size() {
+			return titles.length;
+		}
 	}
 	
 	
@@ -69,6 +171,8 @@ public class SearchResult {
 			c1 = "ranking:VSM";
 		} else if(ranking == 2) {
 			c1 = "ranking:BM25";
+		} else {
+			c1 = "ranking:" + rankingName;
 		}
 		
 		if(stemmer == 0){
@@ -88,7 +192,7 @@ public class SearchResult {
 		System.out.println("Documents total: " + totalDocuments + " (" + relevantDocuments + " relevant)");
 		System.out.println("Documents retrieved: " + totalRetrieved + " (" + relevantRetrieved + " relevant)");
 		System.out.println("Top 25 results: ");
-		for(int i = 0; i < 25; i++){
+		for(int i = 0; i < Math.min(25, totalRetrieved); i++){
 			System.out.println(i+1 + ". " + stringResults.get(i));
 		}
 		System.out.println("");
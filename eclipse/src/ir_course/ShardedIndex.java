@@ -0,0 +1,269 @@
+package ir_course;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldCollectorManager;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+
+
+
+/**
+ * A Lucene index of a document collection split into
+ * shards, each an index of its own, searched in parallel.
+ *
+ * Documents go to shards by a hash of their key, so a
+ * document stays in the same shard however the collection
+ * is ordered. Every shard is searched on its own thread,
+ * and the top documents of all shards are merged in the
+ * rank order of Engine.
+ *
+ * A query is weighted once, with the term and collection
+ * statistics of all shards, and every shard is scored with
+ * that Weight. Multi-term queries are rewritten over all
+ * shards too. Documents keep their position in the
+ * collection, so rankings and scores are the same as
+ * those of one index.
+ */
+public class ShardedIndex implements Closeable {
+
+	final Directory[] shards;
+	int totalDocs;
+	int relevantDocs;
+	int judgedDocs;
+
+	// all shards as one reader, and the segments
+	// of every shard in it
+	private final MultiReader global;
+	private final List<List<LeafReaderContext>> shardLeaves;
+	private final ExecutorService pool;
+
+	// indexes by analyzer configuration and shard count,
+	// with their collections
+	private static final Map<String, ShardedIndex> indexes = new HashMap<String, ShardedIndex>();
+	private static final Map<String, CollectionSource> sources = new HashMap<String, CollectionSource>();
+
+
+
+	/**
+	 * Constructor indexes a collection with the analyzer
+	 * configuration of the given engine into shardCount
+	 * shards. A streamed source is streamed into the shards.
+	 */
+	public ShardedIndex(Engine engine, int shardCount, CollectionSource source) throws IOException {
+		shards = new Directory[shardCount];
+		IndexWriter[] writers = new IndexWriter[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = Engine.newMemoryDirectory();
+			writers[i] = new IndexWriter(shards[i], engine.getConfig(engine.getAnalyzer()));
+		}
+
+		DocumentKeys keys = new DocumentKeys();
+		int[] position = new int[1];
+		Consumer<DocumentInCollection> add = dic -> {
+			String key = keys.next(dic);
+			try {
+				writers[getShard(key, shardCount)].addDocument(engine.getDocument(dic, position[0]++, key));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			totalDocs++;
+			if (dic.getSearchTaskNumber() == 5) {
+				judgedDocs++;
+				if (dic.isRelevant()) relevantDocs++;
+			}
+		};
+		try {
+			source.forEach(add);
+		} catch (UncheckedIOException e) {
+			for (IndexWriter writer : writers) {
+				writer.rollback();
+			}
+			throw e.getCause();
+		} catch (IOException e) {
+			for (IndexWriter writer : writers) {
+				writer.rollback();
+			}
+			throw e;
+		}
+
+		DirectoryReader[] readers = new DirectoryReader[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			writers[i].close();
+			readers[i] = DirectoryReader.open(shards[i]);
+		}
+		global = new MultiReader(readers);
+
+		// segments are in shard order, each shard taking
+		// the next maxDoc documents
+		shardLeaves = new ArrayList<List<LeafReaderContext>>();
+		int end = 0;
+		int leaf = 0;
+		List<LeafReaderContext> leaves = global.leaves();
+		for (int i = 0; i < shardCount; i++) {
+			end += readers[i].maxDoc();
+			List<LeafReaderContext> shardLeaf = new ArrayList<LeafReaderContext>();
+			while (leaf < leaves.size() && leaves.get(leaf).docBase < end) {
+				shardLeaf.add(leaves.get(leaf++));
+			}
+			shardLeaves.add(shardLeaf);
+		}
+		pool = Executors.newFixedThreadPool(shardCount, task -> {
+			Thread thread = new Thread(task, "shard-search");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+
+	/**
+	 * Return the shard of a document key out of shardCount.
+	 */
+	static int getShard(String key, int shardCount) {
+		return Math.floorMod(key.hashCode(), shardCount);
+	}
+
+
+
+	/**
+	 * Return the index of the given number of shards for the
+	 * analyzer configuration of the given engine, built on
+	 * first use from the source. An index of another source
+	 * is replaced.
+	 */
+	public static synchronized ShardedIndex get(Engine engine, int shardCount,
+			CollectionSource source) throws IOException {
+		String key = engine.getAnalyzerKey() + "/" + shardCount;
+		ShardedIndex index = indexes.get(key);
+		if (index == null || !sources.get(key).equals(source)) {
+			long start = System.nanoTime();
+			if (index != null) {
+				index.close();
+			}
+			index = new ShardedIndex(engine, shardCount, source);
+			StageMetrics.record(StageMetrics.INDEX, engine.getCode() + "-sharded", start);
+			indexes.put(key, index);
+			sources.put(key, source);
+		}
+		return index;
+	}
+
+
+
+	/**
+	 * Close and forget all indexes.
+	 */
+	public static synchronized void clear() throws IOException {
+		for (ShardedIndex index : indexes.values()) {
+			index.close();
+		}
+		indexes.clear();
+		sources.clear();
+	}
+
+
+
+	/**
+	 * Return a reader of all shards. Documents found by
+	 * search are documents of this reader.
+	 */
+	IndexReader getReader() {
+		return global;
+	}
+
+
+
+	/**
+	 * Search all shards in parallel for the top documents
+	 * of a Query, ranked with the given Similarity, and merge
+	 * them in rank order.
+	 *
+	 * Return TopFieldDocs.
+	 */
+	TopFieldDocs search(Query query, int depth, Similarity similarity) throws IOException {
+		ShardSearcher searcher = new ShardSearcher(global);
+		searcher.setSimilarity(similarity);
+		Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE, 1);
+		int hits = Math.max(1, Math.min(depth, global.maxDoc()));
+
+		List<Future<TopFieldDocs>> futures = new ArrayList<Future<TopFieldDocs>>();
+		for (List<LeafReaderContext> leaves : shardLeaves) {
+			futures.add(pool.submit(() -> searcher.search(leaves, weight, hits)));
+		}
+
+		TopFieldDocs[] shardHits = new TopFieldDocs[shardLeaves.size()];
+		try {
+			for (int i = 0; i < shardHits.length; i++) {
+				shardHits[i] = futures.get(i).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		return TopDocs.merge(Engine.RANK_ORDER, depth, shardHits);
+	}
+
+
+
+	/**
+	 * An IndexSearcher of all shards that collects the
+	 * top documents of the segments of one shard.
+	 */
+	private static class ShardSearcher extends IndexSearcher {
+
+		ShardSearcher(IndexReader reader) {
+			super(reader);
+		}
+
+		TopFieldDocs search(List<LeafReaderContext> leaves, Weight weight, int hits) throws IOException {
+			TopFieldCollector collector = new TopFieldCollectorManager(
+					Engine.RANK_ORDER, hits, null, hits, false).newCollector();
+			search(leaves, weight, collector);
+			return collector.topDocs();
+		}
+	}
+
+
+
+	/**
+	 * Stop the search threads, and close the readers and
+	 * shards.
+	 */
+	public void close() throws IOException {
+		pool.shutdown();
+		global.close();
+		for (Directory shard : shards) {
+			shard.close();
+		}
+	}
+
+}
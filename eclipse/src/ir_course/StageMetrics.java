@@ -0,0 +1,286 @@
+package ir_course;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+
+/**
+ * Latency histograms and counters of engine stages,
+ * per engine configuration.
+ *
+ * Every histogram is registered as an MXBean named
+ * ir_course:type=StageMetrics,stage="...",engine="..." and
+ * all metrics can be written as JSON. Engine codes may be
+ * any string, and are quoted in both.
+ */
+public class StageMetrics {
+
+	// stages of Engine
+	static final String ANALYZER = "analyzer";
+	static final String INDEX = "index";
+	static final String PARSE = "parse";
+	static final String SEARCH = "search";
+	static final String FETCH = "fetch";
+	static final String FORMAT = "format";
+	static final String UPDATE = "update";
+
+	// by stage or counter, then by engine configuration
+	private static final Map<String, Map<String, Histogram>> histograms = new ConcurrentHashMap<String, Map<String, Histogram>>();
+	private static final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<String, Map<String, LongAdder>>();
+
+
+
+	/**
+	 * Attributes of a stage histogram shown through JMX.
+	 */
+	public interface StageMXBean {
+		long getCount();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP99Millis();
+		double getMaxMillis();
+	}
+
+
+
+	/**
+	 * A latency histogram with buckets of about 3% width,
+	 * so that percentiles are accurate to a few percent for
+	 * any latency, from nanoseconds to hours.
+	 *
+	 * Values below 64 ns have a bucket each. Above that,
+	 * every power of two is divided into 32 buckets.
+	 */
+	static class Histogram implements StageMXBean {
+
+		private static final int BUCKETS = 64 + 58 * 32;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+		// JMX name, or null if not registered
+		private ObjectName name;
+
+		void record(long nanos) {
+			nanos = Math.max(nanos, 0);
+			counts.incrementAndGet(bucket(nanos));
+			count.increment();
+			sum.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		static int bucket(long value) {
+			if (value < 64) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+			return 64 + (shift - 1) * 32 + (int) (value >> shift) - 32;
+		}
+
+		// middle of the range of values of a bucket
+		static long value(int bucket) {
+			if (bucket < 64) {
+				return bucket;
+			}
+			int shift = (bucket - 64) / 32 + 1;
+			long low = (long) ((bucket - 64) % 32 + 32) << shift;
+			return low + (1L << shift) / 2;
+		}
+
+		long percentile(double p) {
+			long total = count.sum();
+			if (total == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(p * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= target) {
+					return Math.min(value(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getMeanMillis() {
+			long n = count.sum();
+			return n == 0 ? 0 : sum.sum() / (double) n / 1e6;
+		}
+
+		public double getP50Millis() {
+			return percentile(0.50) / 1e6;
+		}
+
+		public double getP99Millis() {
+			return percentile(0.99) / 1e6;
+		}
+
+		public double getMaxMillis() {
+			return max.get() / 1e6;
+		}
+	}
+
+
+
+	/**
+	 * Record the time of a stage that started at
+	 * the given System.nanoTime() value.
+	 */
+	public static void record(String stage, String engine, long startNanos) {
+		histogram(stage, engine).record(System.nanoTime() - startNanos);
+	}
+
+
+
+	/**
+	 * Add one to a counter of an engine configuration.
+	 */
+	public static void increment(String counter, String engine) {
+		Map<String, LongAdder> byEngine = counters.computeIfAbsent(counter,
+				k -> new ConcurrentHashMap<String, LongAdder>());
+		LongAdder adder = byEngine.get(nonNull(engine));
+		if (adder == null) {
+			adder = byEngine.computeIfAbsent(nonNull(engine), k -> new LongAdder());
+		}
+		adder.increment();
+	}
+
+
+
+	/**
+	 * Return the histogram of a stage, created and
+	 * registered through JMX on first use. Callers that
+	 * record a stage often may keep the histogram.
+	 */
+	static Histogram histogram(String stage, String engine) {
+		Map<String, Histogram> byEngine = histograms.get(stage);
+		Histogram histogram = byEngine == null ? null : byEngine.get(nonNull(engine));
+		if (histogram != null) {
+			return histogram;
+		}
+		byEngine = histograms.computeIfAbsent(stage, k -> new ConcurrentHashMap<String, Histogram>());
+		return byEngine.computeIfAbsent(nonNull(engine), k -> {
+			Histogram created = new Histogram();
+			try {
+				ObjectName name = new ObjectName("ir_course:type=StageMetrics,stage="
+						+ ObjectName.quote(stage) + ",engine=" + ObjectName.quote(k));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(created, name);
+				created.name = name;
+			} catch (JMException e) {
+				// metrics are still recorded and written as JSON
+			}
+			return created;
+		});
+	}
+
+	// results without an engine configuration
+	private static String nonNull(String engine) {
+		return engine == null ? "" : engine;
+	}
+
+
+
+	/**
+	 * Forget all recorded metrics.
+	 */
+	public static void reset() {
+		for (Map<String, Histogram> byEngine : histograms.values()) {
+			for (Histogram histogram : byEngine.values()) {
+				if (histogram.name == null) {
+					continue;
+				}
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(histogram.name);
+				} catch (JMException e) {
+					// no longer registered
+				}
+			}
+		}
+		histograms.clear();
+		counters.clear();
+	}
+
+
+
+	/**
+	 * Write all metrics as JSON, by stage or counter
+	 * and then by engine configuration.
+	 */
+	public static void writeJson(PrintStream out) {
+		Map<String, Map<String, String>> stages = new TreeMap<String, Map<String, String>>();
+		for (Map.Entry<String, Map<String, Histogram>> stage : histograms.entrySet()) {
+			Map<String, String> byEngine = new TreeMap<String, String>();
+			for (Map.Entry<String, Histogram> entry : stage.getValue().entrySet()) {
+				Histogram h = entry.getValue();
+				byEngine.put(entry.getKey(), String.format(Locale.ROOT,
+						"{\"count\": %d, \"mean_ms\": %.4f, \"p50_ms\": %.4f, \"p99_ms\": %.4f, \"max_ms\": %.4f}",
+						h.getCount(), h.getMeanMillis(), h.getP50Millis(), h.getP99Millis(), h.getMaxMillis()));
+			}
+			stages.put(stage.getKey(), byEngine);
+		}
+		Map<String, Map<String, String>> counts = new TreeMap<String, Map<String, String>>();
+		for (Map.Entry<String, Map<String, LongAdder>> counter : counters.entrySet()) {
+			Map<String, String> byEngine = new TreeMap<String, String>();
+			for (Map.Entry<String, LongAdder> entry : counter.getValue().entrySet()) {
+				byEngine.put(entry.getKey(), Long.toString(entry.getValue().sum()));
+			}
+			counts.put(counter.getKey(), byEngine);
+		}
+
+		out.println("{");
+		out.println("  \"stages\": " + toJson(stages) + ",");
+		out.println("  \"counters\": " + toJson(counts));
+		out.println("}");
+	}
+
+	private static String toJson(Map<String, Map<String, String>> groups) {
+		StringBuilder json = new StringBuilder("{");
+		String separator = "\n";
+		for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+			json.append(separator).append("    ").append(quote(group.getKey())).append(": {");
+			String innerSeparator = "\n";
+			for (Map.Entry<String, String> value : group.getValue().entrySet()) {
+				json.append(innerSeparator).append("      ").append(quote(value.getKey()))
+						.append(": ").append(value.getValue());
+				innerSeparator = ",\n";
+			}
+			json.append("\n    }");
+			separator = ",\n";
+		}
+		return json.append(groups.isEmpty() ? "}" : "\n  }").toString();
+	}
+
+	// a JSON string
+	private static String quote(String value) {
+		StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+}
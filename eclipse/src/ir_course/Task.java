@@ -1,8 +1,17 @@
 package ir_course;
 
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 
@@ -16,185 +25,209 @@ public class Task {
 
 	
 	
+	// recall levels of 11-step precision-recall curves:
+	// 0.0, 0.1, 0.2, 0.3, 0.4, 0.5,
+	// 0.6, 0.7, 0.8, 0.9, 1.0
+	static final float[] RECALL_LEVELS = new float[11];
+	static {
+		for(int i = 0; i < 11; i++) {
+			RECALL_LEVELS[i] = (float)i/10;
+		}
+	}
+
+	
+	
 	/**
-	 * Search through a list of all recall values
-	 * to find the one closest to a target recall value.
+	 * For every recall level, in ascending order, find the rank
+	 * of search results whose recall is closest to it. Of equally
+	 * close ranks, the first one is taken.
+	 * 
+	 * Recall only changes at relevant results and never decreases,
+	 * so the first rank and the ranks of relevant results are the
+	 * only candidates, and the ranks for all levels are found in
+	 * one pass over them.
+	 * 
+	 * Writes the ranks to nearest, and the number of relevant
+	 * results down to each rank to relevantAt.
 	 */
-	public static int findNearest(float target, List<Float> values)
-	{
-		float minSeen = Float.MAX_VALUE;
-		int minSeenIndex = 0;
-		int indexer = 0;
-		for (Float v : values)
-		{
-			float diff = Math.abs(v - target);
-			if (diff < minSeen)
-			{
-				minSeen = diff;
-				minSeenIndex = indexer;
+	public static void findNearest(SearchResult result, float[] levels,
+			int[] nearest, int[] relevantAt) {
+		
+		BitSet relevances = result.relevances;
+		int relevantDocuments = result.relevantDocuments;
+		
+		// closest candidate for the previous level,
+		// no later than the closest for the next one
+		int rank = 0;
+		int relevant = relevances.get(0) ? 1 : 0;
+		
+		for(int i = 0; i < levels.length; i++) {
+			float target = levels[i];
+			float minSeen = Math.abs((float)relevant/relevantDocuments - target);
+			
+			// look at later candidates until they get further away,
+			// passing over ones that are just as close
+			int probe = rank;
+			int probeRelevant = relevant;
+			while(true) {
+				int next = relevances.nextSetBit(probe + 1);
+				if(next < 0) break;
+				probeRelevant++;
+				float diff = Math.abs((float)probeRelevant/relevantDocuments - target);
+				if(diff < minSeen) {
+					minSeen = diff;
+					rank = next;
+					relevant = probeRelevant;
+				} else if(diff > minSeen) {
+					break;
+				}
+				probe = next;
 			}
-			indexer++;
+			
+			nearest[i] = rank;
+			relevantAt[i] = relevant;
 		}
-		return minSeenIndex;
 	}
 
 	
 	
 	/**
-	 * Computes precision and recall values for all depth
-	 * levels of search results.
-	 * 
-	 * Computes and returns 11 precision steps for 11-step
-	 * precision-recall curves.
+	 * Computes precision values for the 11 recall levels
+	 * of 11-step precision-recall curves, at the ranks with
+	 * the closest recall.
 	 * 
 	 * Not interpolated precision values! For debugging.
 	 */
-	public static List<Float> computeOriginalPrecisions(SearchResult result) {		
+	public static float[] computeOriginalPrecisions(SearchResult result) {		
 		
-		List<Integer> relevances = result.relevances;				
-		int relevantDocuments = result.relevantDocuments;		
+		int[] nearest = new int[11];
+		int[] relevantAt = new int[11];
+		findNearest(result, RECALL_LEVELS, nearest, relevantAt);
 		
-		// all recall and precision values
-		List<Float> allRecalls = new LinkedList<Float>();
-		List<Float> allPrecisions = new LinkedList<Float>();
-
-		// 11 recall and precision values for the curves
-		List<Float> recalls11 = new LinkedList<Float>();
-		List<Float> precisions11 = new LinkedList<Float>();
-
-		// fill recalls11 with values required for
-		// 11-step precision-recall curve:
-		// 0.0, 0.1, 0.2, 0.3, 0.4, 0.5,
-		// 0.6, 0.7, 0.8, 0.9, 1.0
-		for(int i = 0; i < 11; i++) {
-			recalls11.add((float)i/10);
-		}
-
-		// compute all recall and precision values
-		int currentTotal = 0;
-		int currentRelevant = 0;
-		for(int i = 0; i < relevances.size(); i++) {
-			currentTotal++;
-			if(relevances.get(i) == 1) currentRelevant++;
-			float currentPrecision = (float)currentRelevant/currentTotal;
-			float currentRecall = (float)currentRelevant/relevantDocuments;
-			allPrecisions.add(i, currentPrecision);
-			allRecalls.add(i, currentRecall);
-		}
-
-		// find precision values in 11 recall steps
-		// that are closest to required recall levels
+		float[] precisions11 = new float[11];
 		for(int i = 0; i < 11; i++) {
-			float goal = recalls11.get(i);			
-			int closest = findNearest(goal, allRecalls);
-			precisions11.add(allPrecisions.get(closest));
+			precisions11[i] = (float)relevantAt[i]/(nearest[i] + 1);
 		}
-
 		return precisions11;		
 	}	
 
 	
 	
 	/**
-	 * Computes precision and recall values for all depth
-	 * levels of search results.
-	 * 
-	 * Computes and returns 11 precision steps for 11-step
-	 * precision-recall curves.
+	 * Computes precision values for the 11 recall levels
+	 * of 11-step precision-recall curves, at the ranks with
+	 * the closest recall.
 	 * 
 	 * Interpolates precision values. Values are suitable to use
 	 * for 11-step interpolated precision-recall curves.
 	 */
-	public static List<Float> computeInterpolatedPrecisions(SearchResult result) {
+	public static float[] computeInterpolatedPrecisions(SearchResult result) {
+		return computeInterpolatedPrecisions(result, RECALL_LEVELS);
+	}
 
-		List<Integer> relevances = result.relevances;
-		int relevantDocuments = result.relevantDocuments;
+	
+	
+	/**
+	 * Computes interpolated precision values for any ascending
+	 * recall levels, at the ranks with the closest recall.
+	 */
+	public static float[] computeInterpolatedPrecisions(SearchResult result, float[] levels) {
 
-		// all recall and precision values
-		float[] allPrecisions = new float[relevances.size()];
-		List<Float> allRecalls = new LinkedList<Float>();
-		
-		// 11 recall and precision values for the curves
-		List<Float> precisions11 = new LinkedList<Float>();
-		List<Float> recalls11 = new LinkedList<Float>();
-
-		// compute all recall and precision values
-		int currentTotal = 0;
-		int currentRelevant = 0;
-		for(int i = 0; i < relevances.size(); i++) {
-			currentTotal++;
-			if(relevances.get(i) == 1) currentRelevant++;
-			float currentPrecision = (float)currentRelevant/currentTotal;
-			float currentRecall = (float)currentRelevant/relevantDocuments;
-			//System.out.println(currentPrecision + " " + currentRecall);
-			allPrecisions[i] = currentPrecision;
-			allRecalls.add(currentRecall);
-		}
+		int[] nearest = new int[levels.length];
+		int[] relevantAt = new int[levels.length];
+		findNearest(result, levels, nearest, relevantAt);
+		float[] suffixMax = computeSuffixMaxPrecisions(result);
 
-		// fill recalls11 with values required for
-		// 11-step precision-recall curve:
-		// 0.0, 0.1, 0.2, 0.3, 0.4, 0.5,
-		// 0.6, 0.7, 0.8, 0.9, 1.0
-		for(int i = 0; i < 11; i++) {
-			recalls11.add((float)i/10);
+		// interpolated precision is the highest precision at
+		// the rank or below it, which is either at the rank
+		// itself or at one of the relevant results below it
+		float[] precisions = new float[levels.length];
+		for(int i = 0; i < levels.length; i++) {
+			float precision = (float)relevantAt[i]/(nearest[i] + 1);
+			precisions[i] = Math.max(precision, suffixMax[relevantAt[i]]);
 		}
-		
-		// find precision values in 11 recall steps
-		// that are closest to required recall levels
-		//
-		// interpolate discovered precision values
-		for(int i = 0; i < 11; i++) {
-			float goal = recalls11.get(i);			
-			int closest = findNearest(goal, allRecalls);
-			
-			float notInterpolated = allPrecisions[closest];
-			float[] leftoverPrecisions = Arrays.copyOfRange(allPrecisions, closest, allPrecisions.length);
 
-			float maxSeen = notInterpolated;
-			for(int k = 0; k < leftoverPrecisions.length; k++) {
-				if(leftoverPrecisions[k] > maxSeen) {
-					maxSeen = leftoverPrecisions[k];
-				}
-			}
-			float interpolated = maxSeen;
-			precisions11.add(interpolated);
+		return precisions;
+
+	}
+
+	
+	
+	/**
+	 * Computes the full-resolution interpolated precision-recall
+	 * curve: recall and interpolated precision at every rank of
+	 * search results.
+	 * 
+	 * Returns recalls in the first array and precisions in
+	 * the second.
+	 */
+	public static float[][] computePrecisionRecallCurve(SearchResult result) {
+
+		BitSet relevances = result.relevances;
+		int relevantDocuments = result.relevantDocuments;
+		float[] suffixMax = computeSuffixMaxPrecisions(result);
+		float[] recalls = new float[result.totalRetrieved];
+		float[] precisions = new float[result.totalRetrieved];
+
+		int relevant = 0;
+		for(int i = 0; i < result.totalRetrieved; i++) {
+			if(relevances.get(i)) relevant++;
+			recalls[i] = (float)relevant/relevantDocuments;
+			precisions[i] = Math.max((float)relevant/(i + 1), suffixMax[relevant]);
 		}
 
-		return precisions11;
+		return new float[][] { recalls, precisions };
+	}
+
+	
+	
+	/**
+	 * Computes, in one reverse pass over the relevant results,
+	 * the highest precision at or below every relevant result.
+	 * 
+	 * Element k is the highest precision at the relevant results
+	 * after the first k of them, 0 if there are none.
+	 */
+	static float[] computeSuffixMaxPrecisions(SearchResult result) {
+
+		BitSet relevances = result.relevances;
+		int relevantRetrieved = relevances.cardinality();
+		float[] suffixMax = new float[relevantRetrieved + 1];
 
+		int relevant = relevantRetrieved;
+		for(int r = relevances.previousSetBit(result.totalRetrieved - 1); r >= 0; r = relevances.previousSetBit(r - 1)) {
+			float precision = (float)relevant/(r + 1);
+			suffixMax[relevant - 1] = Math.max(precision, suffixMax[relevant]);
+			relevant--;
+		}
+
+		return suffixMax;
 	}
 
 	
 	
 	/**
-	 * Takes three lists of 11 (interpolated) precision values
-	 * and computes one list of 11 average precisions.
+	 * Takes lists of (interpolated) precision values at the
+	 * same recall levels, usually 11, one for every search
+	 * query, and computes one list of average precisions.
 	 * 
 	 * Required to find average interpolated precision
-	 * over three different search queries. 
+	 * over different search queries. 
 	 */
-	public static List<Float> averagePrecisions(List<List<Float>> precisions) {		
-		
-		// create an empty list with 11 float zeroes
-		List<Float> averagedPrecisions = new LinkedList<Float>();
-		for(int i = 0; i < 11; i++) {
-			averagedPrecisions.add(Float.valueOf(0));
-		}	
+	public static float[] averagePrecisions(List<float[]> precisions) {		
 		
-		// populate the list with sum of three given precision values
-		for(int i = 0; i < 3; i++) {
-			for(int j = 0; j < 11; j++) {
-				float currentValue = averagedPrecisions.get(j);
-				float newValue = currentValue + precisions.get(i).get(j);
-				averagedPrecisions.set(j, newValue);
+		// sum of given precision values
+		int levels = precisions.get(0).length;
+		float[] averagedPrecisions = new float[levels];
+		for(float[] p : precisions) {
+			for(int j = 0; j < levels; j++) {
+				averagedPrecisions[j] += p[j];
 			}
 		}
 		
-		// divide each element of the list by 3 to get an average
-		for(int i = 0; i < 11; i++) {
-			Float currentValue = averagedPrecisions.get(i);
-			Float newValue = new Float(currentValue/3.0);
-			averagedPrecisions.set(i, newValue);
+		// divide each sum by the number of queries to get an average
+		for(int i = 0; i < levels; i++) {
+			averagedPrecisions[i] = (float)(averagedPrecisions[i]/(double)precisions.size());
 		}
 
 		return averagedPrecisions;
@@ -202,10 +235,86 @@ public class Task {
 	
 	
 
+	/**
+	 * Optional command line arguments of main.
+	 */
+	static class Options {
+		Path indexPath = null;
+		boolean stream = false;
+		int indexThreads = 1;
+		int parallelism = 1;
+		boolean trecEval = false;
+		Path metricsJson = null;
+		Path snapshot = null;
+		int shards = 1;
+		int searchThreads = 1;
+		int segments = 0;
+		ExecutorService searchExecutor = null;
+		
+		static Options parse(String[] args) {
+			Options options = new Options();
+			for (int i = 1; i < args.length; i++) {
+				if (args[i].equals("--index-dir")) {
+					options.indexPath = Paths.get(args[++i]);
+				} else if (args[i].equals("--stream")) {
+					options.stream = true;
+				} else if (args[i].equals("--index-threads")) {
+					options.indexThreads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--parallelism")) {
+					options.parallelism = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--trec-eval")) {
+					options.trecEval = true;
+				} else if (args[i].equals("--metrics-json")) {
+					options.metricsJson = Paths.get(args[++i]);
+				} else if (args[i].equals("--snapshot")) {
+					options.snapshot = Paths.get(args[++i]);
+				} else if (args[i].equals("--shards")) {
+					options.shards = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--search-threads")) {
+					options.searchThreads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--segments")) {
+					options.segments = Integer.parseInt(args[++i]);
+				}
+			}
+			return options;
+		}
+		
+		/**
+		 * Create an engine with the given code, configured
+		 * according to these options.
+		 */
+		Engine newEngine(String code) {
+			Engine engine = new Engine(code);
+			engine.setReuseIndex(true);
+			engine.setIndexPath(indexPath);
+			engine.setIndexThreads(indexThreads);
+			engine.setShards(shards);
+			engine.setSearchExecutor(searchExecutor, 0);
+			engine.setSegments(segments);
+			return engine;
+		}
+	}
+	
+	
+	
+	/**
+	 * Search for a query with a new engine, over either
+	 * a DocumentInCollection List or a streamed collection.
+	 */
+	static SearchResult runSearch(Options options, String code,
+			String query, CollectionSource source) throws Exception {
+		Engine engine = options.newEngine(code);
+		return engine.doSearch(query, source);
+	}
+	
+	
+
 	/**
 	 * Creates a list of documents in collection.
 	 * 
 	 * Creates six search engines with different configurations.
+	 * Engines with the same analyzer configuration share
+	 * one index.
 	 * 
 	 * Executes three searches for every engine.
 	 * 
@@ -215,13 +324,46 @@ public class Task {
 	 * 
 	 * The resulting list is used to plot 11-step interpolated
 	 * precision-recall curves.
+	 * 
+	 * Usage: Task corpus.xml [--index-dir path] [--stream]
+	 *                         [--index-threads n] [--parallelism n]
+	 *                         [--trec-eval] [--metrics-json file]
+	 *                         [--snapshot file] [--shards n]
+	 *                         [--search-threads n] [--segments n]
+	 * 
+	 * With --index-dir, indexes are kept on disk and reused
+	 * by later runs; the collection is not parsed at all if
+	 * it has not changed since. With --stream, documents are indexed
+	 * while the collection is parsed, without keeping them
+	 * in memory. With --index-threads, n threads add
+	 * documents to each index. With --parallelism, n searches
+	 * run at a time; the output is the same as when they
+	 * run one after another. With --trec-eval, trec_eval
+	 * measures of every engine are printed at the end, with
+	 * the engine code as run id. With --metrics-json, latency
+	 * of every engine stage is written to file as JSON; the
+	 * same metrics are shown through JMX while Task runs.
+	 * With --snapshot, the collection is read from a binary
+	 * snapshot file, written by the first run and again
+	 * whenever the collection changes. With --shards, every
+	 * index is split into n shards searched in parallel.
+	 * With --search-threads, every query is searched by n
+	 * threads, one segment at a time. With --segments, every
+	 * index is written as n segments of equal size.
 	 */
 	public static void main(String[] args) throws Exception {
 
-		// prepare document collection
-		DocumentCollectionParser parser = new DocumentCollectionParser();
-		parser.parse(args[0]);
-		List<DocumentInCollection> dics = parser.getDocuments();
+		Options options = Options.parse(args);
+		if (options.searchThreads > 1) {
+			options.searchExecutor = Executors.newFixedThreadPool(options.searchThreads);
+		}
+
+		// prepare document collection, parsed once when the
+		// first index is built, or stream it straight into
+		// the indexes
+		CollectionSource source = options.stream
+				? CollectionSource.stream(args[0])
+				: CollectionSource.parse(args[0], options.snapshot);
 
 		// our three search queries
 		String[] qs = new String[3];
@@ -230,8 +372,9 @@ public class Task {
 		qs[2] = "cross-language information retrieval";
 
 		// final precision values for curves
-		List<List<Float>> finalOriginal = new LinkedList<List<Float>>();
-		List<List<Float>> finalInterpolated = new LinkedList<List<Float>>();
+		List<float[]> finalOriginal = new LinkedList<float[]>();
+		List<float[]> finalInterpolated = new LinkedList<float[]>();
+		List<List<Map<String, Double>>> finalMeasures = new LinkedList<List<Map<String, Double>>>();
 
 		// Engine configurations.
 		// First digit = ranking method VSM (1) or BM25 (2)
@@ -240,31 +383,75 @@ public class Task {
 		List<String> engines = new LinkedList<String>();
 		engines.addAll(Arrays.asList("111","110","101","211", "210", "201"));
 
-		// compute non-interpolated and interpolated precision values
-		// for plotting the curves
-		for(String e : engines) {
-			List<List<Float>> originalPrecisions = new LinkedList<List<Float>>();
-			List<List<Float>> interpolatedPrecisions = new LinkedList<List<Float>>();		
-			for (int i = 0; i < 3; i++) {
-				Engine engine = new Engine(e);
-				SearchResult sr = engine.doSearch(qs[i], dics);
-				sr.report();
-				originalPrecisions.add(computeOriginalPrecisions(sr));
-				interpolatedPrecisions.add(computeInterpolatedPrecisions(sr));
+		// run all searches, in parallel if requested, and stop
+		// all threads even if a search fails, so the JVM exits
+		ExecutorService pool = Executors.newFixedThreadPool(options.parallelism);
+		try {
+			// keep results in engine and query order
+			List<Future<SearchResult>> runs = new LinkedList<Future<SearchResult>>();
+			for(String e : engines) {
+				for (int i = 0; i < 3; i++) {
+					String query = qs[i];
+					CollectionSource collection = source;
+					runs.add(pool.submit(() -> runSearch(options, e, query, collection)));
+				}
+			}
+			pool.shutdown();
+
+			// compute non-interpolated and interpolated precision values
+			// for plotting the curves
+			Iterator<Future<SearchResult>> results = runs.iterator();
+			for(String e : engines) {
+				List<float[]> originalPrecisions = new LinkedList<float[]>();
+				List<float[]> interpolatedPrecisions = new LinkedList<float[]>();		
+				List<Map<String, Double>> measures = new LinkedList<Map<String, Double>>();
+				for (int i = 0; i < 3; i++) {
+					SearchResult sr = results.next().get();
+					sr.report();
+					originalPrecisions.add(computeOriginalPrecisions(sr));
+					interpolatedPrecisions.add(computeInterpolatedPrecisions(sr));
+					measures.add(Metrics.evaluate(sr));
+				}
+				float[] averageOriginalPrecisions = averagePrecisions(originalPrecisions);
+				float[] averageInterpolatedPrecisions = averagePrecisions(interpolatedPrecisions);
+				finalOriginal.add(averageOriginalPrecisions);
+				finalInterpolated.add(averageInterpolatedPrecisions);
+				finalMeasures.add(measures);
+			}		
+		} finally {
+			pool.shutdownNow();
+			if (options.searchExecutor != null) {
+				options.searchExecutor.shutdownNow();
 			}
-			List<Float> averageOriginalPrecisions = averagePrecisions(originalPrecisions);
-			List<Float> averageInterpolatedPrecisions = averagePrecisions(interpolatedPrecisions);
-			finalOriginal.add(averageOriginalPrecisions);
-			finalInterpolated.add(averageInterpolatedPrecisions);
-		}		
+		}
 
 		// Print final precision values
 		System.out.println("Average precision values (interpolated) for all engines:");
-		for(List<Float> r : finalInterpolated) {
-			System.out.println(r);
+		for(float[] r : finalInterpolated) {
+			System.out.println(Arrays.toString(r));
+		}
+
+		// Print trec_eval measures, queries numbered from 1
+		if (options.trecEval) {
+			Iterator<List<Map<String, Double>>> measures = finalMeasures.iterator();
+			for(String e : engines) {
+				List<Map<String, Double>> engineMeasures = measures.next();
+				System.out.println(String.format("%-22s\t%s\t%s", "runid", "all", e));
+				for (int i = 0; i < engineMeasures.size(); i++) {
+					Metrics.write(System.out, Integer.toString(i + 1), engineMeasures.get(i));
+				}
+				Metrics.write(System.out, "all", Metrics.average(engineMeasures));
+			}
+		}
+
+		// Write latency metrics of engine stages
+		if (options.metricsJson != null) {
+			try (PrintStream out = new PrintStream(options.metricsJson.toFile(), "UTF-8")) {
+				StageMetrics.writeJson(out);
+			}
 		}
 
 
 	}
 
-}
+}
\ No newline at end of file